@@ -104,6 +104,30 @@ public class PatchGenMojo extends AbstractMojo {
     @Parameter( property = "combineWith" )
     private File combineWith;
 
+    @Parameter( property = "stagingDir" )
+    private File stagingDir;
+
+    @Parameter( property = "changedPaths" )
+    private File changedPaths;
+
+    @Parameter( property = "paranoid" )
+    private Boolean paranoid;
+
+    @Parameter( property = "reportOnly" )
+    private Boolean reportOnly;
+
+    @Parameter( property = "seedHashes" )
+    private Boolean seedHashes;
+
+    @Parameter( property = "seedHashesFrom" )
+    private List<File> seedHashesFrom;
+
+    @Parameter( property = "artifactMap" )
+    private File artifactMap;
+
+    @Parameter( defaultValue = "${settings.localRepository}" )
+    private File localRepository;
+
     @Parameter( property = "argLine" )
     private String argLine;
 
@@ -152,6 +176,44 @@ public class PatchGenMojo extends AbstractMojo {
             args.add( PatchGenerator.COMBINE_WITH + "=" + combineWith.getPath() );
         }
 
+        if ( stagingDir != null ) {
+            args.add( PatchGenerator.STAGING_DIR + "=" + stagingDir.getPath() );
+        }
+
+        if ( changedPaths != null ) {
+            args.add( PatchGenerator.CHANGED_PATHS + "=" + changedPaths.getPath() );
+        }
+
+        if ( paranoid != null ) {
+            args.add( PatchGenerator.PARANOID );
+        }
+
+        if ( reportOnly != null ) {
+            args.add( PatchGenerator.REPORT_ONLY );
+        }
+
+        if ( seedHashes != null ) {
+            args.add( PatchGenerator.SEED_HASHES );
+        }
+
+        if ( seedHashesFrom != null && !seedHashesFrom.isEmpty() ) {
+            StringBuilder paths = new StringBuilder();
+            for ( File seedPatch : seedHashesFrom ) {
+                if ( paths.length() > 0 ) {
+                    paths.append( File.pathSeparator );
+                }
+                paths.append( seedPatch.getPath() );
+            }
+            args.add( PatchGenerator.SEED_HASHES_FROM + "=" + paths );
+        }
+
+        if ( artifactMap != null ) {
+            args.add( PatchGenerator.ARTIFACT_MAP + "=" + artifactMap.getPath() );
+            if ( localRepository != null ) {
+                args.add( PatchGenerator.LOCAL_REPOSITORY + "=" + localRepository.getPath() );
+            }
+        }
+
         // Ideally, we'd just invoke PatchGenerator directly; currently we cannot do so due to https://issues.jboss.org/browse/MODULES-136:
         // JBoss Modules, when used as a library, will set some system properties to values causing trouble for other plug-ins later in the
         // build; e.g. SAXParserFactory is redirected to a JBoss Modules specific variant which then cannot be found by other users such as
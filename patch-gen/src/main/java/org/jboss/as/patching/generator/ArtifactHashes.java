@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.jboss.as.patching.HashUtils;
+
+/**
+ * The hashes of distribution files which are copies of artifacts in a local Maven repository, taken from the
+ * {@code .sha1} checksum next to each artifact instead of reading the file.
+ * <p/>
+ * The artifact map lists one file per line as {@code <path>=<groupId>:<artifactId>[:<extension>[:<classifier>]]:<version>},
+ * the path being relative to the distribution root. Empty lines and lines starting with {@code #} are ignored, the
+ * extension defaults to {@code jar}. A checksum is only used if the artifact has the same size as the file.
+ * <p/>
+ * The hash of a module or bundle covers the content of all its files, it cannot be derived from the checksums of the
+ * single jars. Only content hashed as a single file uses the checksums.
+ */
+class ArtifactHashes {
+
+    private static final Pattern SHA1_HEX = Pattern.compile("[0-9a-fA-F]{40}");
+
+    private final Map<String, File> artifacts;
+
+    ArtifactHashes(final Map<String, File> artifacts) {
+        this.artifacts = artifacts;
+    }
+
+    /**
+     * Load the artifact map.
+     *
+     * @param file       the artifact map
+     * @param repository the local repository
+     * @return the artifact hashes
+     * @throws IOException
+     */
+    static ArtifactHashes load(final File file, final File repository) throws IOException {
+        final Map<String, File> artifacts = new HashMap<String, File>();
+        for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            final String entry = line.trim();
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+            final int index = entry.indexOf('=');
+            if (index < 0) {
+                throw processingError("invalid artifact mapping %s in %s", entry, file);
+            }
+            final String path = entry.substring(0, index).trim().replace('\\', '/');
+            artifacts.put(path, getArtifactFile(repository, entry.substring(index + 1).trim(), file));
+        }
+        return new ArtifactHashes(artifacts);
+    }
+
+    /**
+     * Get the location of an artifact in the repository.
+     *
+     * @param repository  the local repository
+     * @param coordinates the artifact coordinates
+     * @param source      the artifact map, for error reporting
+     * @return the artifact file
+     */
+    static File getArtifactFile(final File repository, final String coordinates, final File source) {
+        final String[] parts = coordinates.split(":");
+        if (parts.length < 3 || parts.length > 5) {
+            throw processingError("invalid artifact coordinates %s in %s", coordinates, source);
+        }
+        final String groupId = parts[0];
+        final String artifactId = parts[1];
+        final String extension = parts.length > 3 ? parts[2] : "jar";
+        final String classifier = parts.length > 4 ? parts[3] : null;
+        final String version = parts[parts.length - 1];
+
+        final StringBuilder name = new StringBuilder(artifactId).append('-').append(version);
+        if (classifier != null && !classifier.isEmpty()) {
+            name.append('-').append(classifier);
+        }
+        name.append('.').append(extension);
+        final File dir = new File(new File(new File(repository, groupId.replace('.', File.separatorChar)), artifactId), version);
+        return new File(dir, name.toString());
+    }
+
+    /**
+     * Get the recorded hash of a file.
+     *
+     * @param path the path relative to the distribution root
+     * @param file the file
+     * @return the SHA1 of the artifact, {@code null} if unknown
+     */
+    byte[] getHash(final String path, final File file) {
+        final File artifact = artifacts.get(path);
+        if (artifact == null || artifact.length() != file.length()) {
+            return null;
+        }
+        final File checksum = new File(artifact.getPath() + ".sha1");
+        if (!checksum.isFile()) {
+            return null;
+        }
+        try {
+            // Either just the checksum, or followed by the file name
+            final String content = new String(Files.readAllBytes(checksum.toPath()), StandardCharsets.US_ASCII).trim();
+            final String hex = content.split("\\s+", 2)[0];
+            if (!SHA1_HEX.matcher(hex).matches()) {
+                System.out.println("WARN: ignoring invalid checksum " + checksum.getAbsolutePath());
+                return null;
+            }
+            return HashUtils.hexStringToByteArray(hex.toLowerCase());
+        } catch (IOException e) {
+            System.out.println("WARN: ignoring invalid checksum " + checksum.getAbsolutePath());
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The paths known to be changed between the distributions, e.g. from the build or the version control system.
+ * <p/>
+ * The distributions are still scanned completely to detect added and removed content, but only listed content is
+ * hashed. A module is listed if any of its files is. Unlisted content of the same size in both distributions is
+ * trusted to be unchanged, unlisted content with a different size is compared by hash.
+ * <p/>
+ * In paranoid mode a random sample of the trusted content is compared by hash as well, the share is configured using
+ * the {@code patch.gen.changed.paths.sample} system property and defaults to 5%. A trusted item which turns out to be
+ * changed fails the generation, since the list is incomplete.
+ */
+class ChangedPaths {
+
+    static final double SAMPLE = Double.parseDouble(System.getProperty("patch.gen.changed.paths.sample", "0.05"));
+
+    private final File source;
+    private final NavigableSet<String> paths;
+    private final boolean paranoid;
+
+    ChangedPaths(final File source, final NavigableSet<String> paths, final boolean paranoid) {
+        this.source = source;
+        this.paths = paths;
+        this.paranoid = paranoid;
+    }
+
+    /**
+     * Load the list, one path relative to the distribution root per line. Empty lines and lines starting with
+     * {@code #} are ignored.
+     *
+     * @param file     the file
+     * @param paranoid whether to verify a sample of the unlisted content
+     * @return the changed paths
+     * @throws IOException
+     */
+    static ChangedPaths load(final File file, final boolean paranoid) throws IOException {
+        final NavigableSet<String> paths = new TreeSet<String>();
+        for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            final String path = normalize(line.trim());
+            if (!path.isEmpty() && !path.startsWith("#")) {
+                paths.add(path);
+            }
+        }
+        return new ChangedPaths(file, paths, paranoid);
+    }
+
+    /**
+     * Whether a path is listed: either the path itself, one of its parents or, for a directory, one of its children.
+     *
+     * @param path the path relative to the distribution root
+     * @return {@code true} if listed
+     */
+    boolean isListed(final String path) {
+        return matches(paths, normalize(path));
+    }
+
+    /**
+     * Whether a path, one of its parents or one of its children is contained in a set of paths.
+     *
+     * @param paths the '/' separated paths
+     * @param path  the '/' separated path
+     * @return {@code true} if matching
+     */
+    static boolean matches(final NavigableSet<String> paths, final String path) {
+        if (!paths.subSet(path + '/', path + '0').isEmpty()) {
+            return true;
+        }
+        String current = path;
+        while (true) {
+            if (paths.contains(current)) {
+                return true;
+            }
+            final int index = current.lastIndexOf('/');
+            if (index < 0) {
+                return false;
+            }
+            current = current.substring(0, index);
+        }
+    }
+
+    /**
+     * Whether two items are trusted to be unchanged, since neither is listed and they have the same size.
+     *
+     * @param o the original item
+     * @param n the updated item
+     * @return {@code true} if trusted to be unchanged, {@code false} if the hashes need to be compared
+     */
+    static boolean isUnchanged(final DistributionContentItem o, final DistributionContentItem n) {
+        if (!(o instanceof DistributionItemFileImpl) || !(n instanceof DistributionItemFileImpl)) {
+            return false;
+        }
+        final DistributionItemFileImpl original = (DistributionItemFileImpl) o;
+        final DistributionItemFileImpl updated = (DistributionItemFileImpl) n;
+        final ChangedPaths changedPaths = original.getUnlistedIn();
+        if (changedPaths == null || changedPaths != updated.getUnlistedIn()) {
+            return false;
+        }
+        final long size = original.getContentSize();
+        if (size < 0 || size != updated.getContentSize()) {
+            return false;
+        }
+        changedPaths.verify(original, updated);
+        return true;
+    }
+
+    private void verify(final DistributionItemFileImpl o, final DistributionItemFileImpl n) {
+        if (paranoid && ThreadLocalRandom.current().nextDouble() < SAMPLE) {
+            if (!Arrays.equals(o.getComparisonHash(), n.getComparisonHash())) {
+                throw processingError("%s changed, but is not listed in %s", n.getPath(), source);
+            }
+        }
+    }
+
+    private static String normalize(final String path) {
+        String normalized = path.replace(File.separatorChar, '/');
+        while (normalized.startsWith("./")) {
+            normalized = normalized.substring(2);
+        }
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+}
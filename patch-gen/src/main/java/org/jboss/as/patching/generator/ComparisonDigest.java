@@ -0,0 +1,317 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * The digests used for the comparison hashes. Comparison hashes are only compared while generating the patch, they are
+ * never written to the patch metadata, which keeps using SHA1.
+ * <p/>
+ * The algorithm is configured using the {@code patch.gen.comparison.digest} system property: {@code SHA1} (default),
+ * any other {@link MessageDigest} algorithm like {@code SHA-256}, or the non-cryptographic {@code XXH64} and
+ * {@code CRC32}. A non-cryptographic digest may hide a change through a collision, with
+ * {@code patch.gen.comparison.confirm} set to {@code true} items considered unchanged are compared again using SHA1.
+ * Items with different hashes are always changed, so they need no confirmation.
+ */
+class ComparisonDigest {
+
+    static final String STRONG_ALGORITHM = "SHA1";
+    static final String ALGORITHM = System.getProperty("patch.gen.comparison.digest", STRONG_ALGORITHM);
+    static final boolean CONFIRM = Boolean.getBoolean("patch.gen.comparison.confirm") && !isCryptographic(ALGORITHM);
+
+    private static final ThreadLocal<ComparisonDigest> DEFAULT = newThreadLocal(ALGORITHM);
+    private static final ThreadLocal<ComparisonDigest> STRONG = newThreadLocal(STRONG_ALGORITHM);
+
+    // The digests for the different nesting levels, a module contains jars containing entries
+    private final boolean strong;
+    private final MessageDigest module;
+    private final MessageDigest resource;
+    private final MessageDigest jar;
+    private final MessageDigest entry;
+
+    private ComparisonDigest(final String algorithm) {
+        this.strong = STRONG_ALGORITHM.equalsIgnoreCase(algorithm) || "SHA-1".equalsIgnoreCase(algorithm);
+        this.module = newDigest(algorithm);
+        this.resource = newDigest(algorithm);
+        this.jar = newDigest(algorithm);
+        this.entry = newDigest(algorithm);
+    }
+
+    /**
+     * Get the digests of the current thread.
+     *
+     * @param strong whether to use SHA1 rather than the configured algorithm
+     * @return the digests
+     */
+    static ComparisonDigest get(final boolean strong) {
+        return strong ? STRONG.get() : DEFAULT.get();
+    }
+
+    MessageDigest getModuleDigest() {
+        return reset(module);
+    }
+
+    MessageDigest getResourceDigest() {
+        return reset(resource);
+    }
+
+    MessageDigest getJarDigest() {
+        return reset(jar);
+    }
+
+    MessageDigest getEntryDigest() {
+        return reset(entry);
+    }
+
+    /**
+     * Whether the digests are SHA1, so that the hashes are the same as the ones used for the metadata.
+     */
+    boolean isStrong() {
+        return strong;
+    }
+
+    private static MessageDigest reset(final MessageDigest digest) {
+        digest.reset();
+        return digest;
+    }
+
+    static boolean isCryptographic(final String algorithm) {
+        return !XXHash64Digest.ALGORITHM.equalsIgnoreCase(algorithm) && !Crc32Digest.ALGORITHM.equalsIgnoreCase(algorithm);
+    }
+
+    static MessageDigest newDigest(final String algorithm) {
+        if (XXHash64Digest.ALGORITHM.equalsIgnoreCase(algorithm)) {
+            return new XXHash64Digest();
+        } else if (Crc32Digest.ALGORITHM.equalsIgnoreCase(algorithm)) {
+            return new Crc32Digest();
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw processingError(e, "comparison digest %s not available", algorithm);
+        }
+    }
+
+    private static ThreadLocal<ComparisonDigest> newThreadLocal(final String algorithm) {
+        return new ThreadLocal<ComparisonDigest>() {
+            @Override
+            protected ComparisonDigest initialValue() {
+                return new ComparisonDigest(algorithm);
+            }
+        };
+    }
+
+    /**
+     * The 64 bit xxHash, with a seed of 0.
+     */
+    static final class XXHash64Digest extends MessageDigest {
+
+        static final String ALGORITHM = "XXH64";
+
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+        private final byte[] buffer = new byte[32];
+        private int buffered;
+        private long length;
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+
+        XXHash64Digest() {
+            super(ALGORITHM);
+            engineReset();
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 8;
+        }
+
+        @Override
+        protected void engineUpdate(final byte input) {
+            buffer[buffered++] = input;
+            length++;
+            if (buffered == 32) {
+                process(buffer, 0);
+                buffered = 0;
+            }
+        }
+
+        @Override
+        protected void engineUpdate(final byte[] input, int offset, int len) {
+            length += len;
+            if (buffered > 0) {
+                final int fill = Math.min(32 - buffered, len);
+                System.arraycopy(input, offset, buffer, buffered, fill);
+                buffered += fill;
+                offset += fill;
+                len -= fill;
+                if (buffered < 32) {
+                    return;
+                }
+                process(buffer, 0);
+                buffered = 0;
+            }
+            while (len >= 32) {
+                process(input, offset);
+                offset += 32;
+                len -= 32;
+            }
+            System.arraycopy(input, offset, buffer, 0, len);
+            buffered = len;
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            long h;
+            if (length >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = merge(h, v1);
+                h = merge(h, v2);
+                h = merge(h, v3);
+                h = merge(h, v4);
+            } else {
+                h = PRIME5;
+            }
+            h += length;
+            int i = 0;
+            while (i + 8 <= buffered) {
+                h ^= round(0, getLong(buffer, i));
+                h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+                i += 8;
+            }
+            if (i + 4 <= buffered) {
+                h ^= (getInt(buffer, i) & 0xFFFFFFFFL) * PRIME1;
+                h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+                i += 4;
+            }
+            while (i < buffered) {
+                h ^= (buffer[i] & 0xFF) * PRIME5;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+                i++;
+            }
+            h ^= h >>> 33;
+            h *= PRIME2;
+            h ^= h >>> 29;
+            h *= PRIME3;
+            h ^= h >>> 32;
+
+            final byte[] result = new byte[8];
+            for (int n = 0; n < 8; n++) {
+                result[n] = (byte) (h >>> (56 - 8 * n));
+            }
+            engineReset();
+            return result;
+        }
+
+        @Override
+        protected void engineReset() {
+            buffered = 0;
+            length = 0;
+            v1 = PRIME1 + PRIME2;
+            v2 = PRIME2;
+            v3 = 0;
+            v4 = -PRIME1;
+        }
+
+        private void process(final byte[] input, final int offset) {
+            v1 = round(v1, getLong(input, offset));
+            v2 = round(v2, getLong(input, offset + 8));
+            v3 = round(v3, getLong(input, offset + 16));
+            v4 = round(v4, getLong(input, offset + 24));
+        }
+
+        private static long round(long acc, final long input) {
+            acc += input * PRIME2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * PRIME1;
+        }
+
+        private static long merge(long acc, final long value) {
+            acc ^= round(0, value);
+            return acc * PRIME1 + PRIME4;
+        }
+
+        private static long getLong(final byte[] b, final int i) {
+            return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+                    | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+        }
+
+        private static int getInt(final byte[] b, final int i) {
+            return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+        }
+    }
+
+    /**
+     * CRC-32 as a digest, CRC-32C is not available before Java 9.
+     */
+    static final class Crc32Digest extends MessageDigest {
+
+        static final String ALGORITHM = "CRC32";
+
+        private final CRC32 crc = new CRC32();
+
+        Crc32Digest() {
+            super(ALGORITHM);
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 4;
+        }
+
+        @Override
+        protected void engineUpdate(final byte input) {
+            crc.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(final byte[] input, final int offset, final int len) {
+            crc.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            final long value = crc.getValue();
+            crc.reset();
+            return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        @Override
+        protected void engineReset() {
+            crc.reset();
+        }
+    }
+
+}
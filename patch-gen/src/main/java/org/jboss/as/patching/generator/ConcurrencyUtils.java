@@ -0,0 +1,156 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers for running independent parts of the patch generation concurrently.
+ */
+class ConcurrencyUtils {
+
+    /**
+     * The default number of worker threads, can be overridden using the {@code patch.gen.threads} system property.
+     */
+    static final int DEFAULT_THREADS = Math.max(1, Integer.getInteger("patch.gen.threads", Runtime.getRuntime().availableProcessors()));
+
+    private ConcurrencyUtils() {
+        //
+    }
+
+    /**
+     * Create a fixed size thread pool using daemon threads, so that a failed run never hangs on exit.
+     *
+     * @param name    the thread name prefix
+     * @param threads the number of threads
+     * @return the executor
+     */
+    static ExecutorService newFixedThreadPool(final String name, final int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new DaemonThreadFactory(name));
+    }
+
+    /**
+     * Execute all tasks and wait for their results. The results are returned in the order of the tasks, and the
+     * first failure (in task order) is propagated after cancelling the remaining tasks.
+     *
+     * @param executor the executor
+     * @param tasks    the tasks
+     * @return the results
+     * @throws IOException
+     */
+    static <T> List<T> invokeAll(final ExecutorService executor, final Collection<? extends Callable<T>> tasks) throws IOException {
+        final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (final Callable<T> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        final List<T> results = new ArrayList<T>(futures.size());
+        try {
+            for (final Future<T> future : futures) {
+                results.add(join(future));
+            }
+        } finally {
+            for (final Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the tasks submitted to a completion service. Unlike {@link #invokeAll}, the first failure is propagated
+     * as soon as it occurs, without waiting for the tasks submitted before it.
+     *
+     * @param service the completion service
+     * @param count   the number of submitted tasks
+     * @throws IOException
+     */
+    static void awaitAll(final CompletionService<?> service, final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            final Future<?> future;
+            try {
+                future = service.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw processingError(e, "interrupted while waiting for a task");
+            }
+            join(future);
+        }
+    }
+
+    /**
+     * Wait for a result, propagating the original failure where possible.
+     *
+     * @param future the future
+     * @return the result
+     * @throws IOException
+     */
+    static <T> T join(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw processingError(e, "interrupted while waiting for a task");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw processingError(e, "task failed: %s", cause);
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
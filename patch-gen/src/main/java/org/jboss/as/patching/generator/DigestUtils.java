@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Per thread digests and buffers for the hashing hot paths, so that hashing an entry does not allocate.
+ */
+class DigestUtils {
+
+    /**
+     * The size of the read buffers, can be changed using the {@code patch.gen.hash.buffer.size} system property.
+     */
+    static final int BUFFER_SIZE = Math.max(4096, Integer.getInteger("patch.gen.hash.buffer.size", 64 * 1024));
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final ThreadLocal<byte[]> ENCODER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    // Whether the platform charset encodes ASCII characters as single bytes of the same value
+    private static final boolean ASCII_COMPATIBLE;
+    static {
+        final char[] chars = new char[128];
+        final byte[] bytes = new byte[128];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) i;
+            bytes[i] = (byte) i;
+        }
+        ASCII_COMPATIBLE = Arrays.equals(bytes, new String(chars).getBytes());
+    }
+
+    private DigestUtils() {
+        //
+    }
+
+    /**
+     * Get the read buffer of the current thread. The buffer must not be used across calls which might use it as well.
+     *
+     * @return the buffer
+     */
+    static byte[] getBuffer() {
+        return BUFFER.get();
+    }
+
+    /**
+     * Create a holder for a digest per thread.
+     *
+     * @param algorithm the digest algorithm
+     * @return the thread local digest
+     */
+    static ThreadLocal<MessageDigest> newThreadLocalDigest(final String algorithm) {
+        return new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw processingError(e, "digest %s not available", algorithm);
+                }
+            }
+        };
+    }
+
+    /**
+     * Get the reset digest of the current thread.
+     *
+     * @param digest the thread local digest
+     * @return the digest
+     */
+    static MessageDigest getDigest(final ThreadLocal<MessageDigest> digest) {
+        final MessageDigest instance = digest.get();
+        instance.reset();
+        return instance;
+    }
+
+    /**
+     * Update a digest with a string encoded using the platform charset, the same as {@code value.getBytes()}, without
+     * allocating for ASCII strings.
+     *
+     * @param digest the digest
+     * @param value  the string
+     */
+    static void update(final MessageDigest digest, final String value) {
+        final int length = value.length();
+        if (ASCII_COMPATIBLE) {
+            byte[] bytes = ENCODER_BUFFER.get();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+                ENCODER_BUFFER.set(bytes);
+            }
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c >= 0x80) {
+                    digest.update(value.getBytes());
+                    return;
+                }
+                bytes[i] = (byte) c;
+            }
+            digest.update(bytes, 0, length);
+        } else {
+            digest.update(value.getBytes());
+        }
+    }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lists the directories of a distribution, reading the attributes of every entry exactly once. The scan decides
+ * everything from these attributes and the listings, e.g. whether a directory contains a {@code module.xml}, instead
+ * of checking the file system again.
+ * <p/>
+ * With the {@code patch.gen.metrics} system property set to {@code true}, the number of directory listings and
+ * attribute reads, which are the file system calls made by the scan, is printed once a distribution was scanned.
+ * <p/>
+ * Every listing and attribute read takes a permit of the I/O budget shared with the hashing and the scans of the other
+ * distributions, see {@link HashingService#getIoPermits()}.
+ */
+class DirectoryScanner {
+
+    static final boolean METRICS = Boolean.getBoolean("patch.gen.metrics");
+
+    private final Semaphore ioPermits;
+    private final long start = System.nanoTime();
+    private long listings;
+    private long attributeReads;
+
+    /**
+     * Create a scanner.
+     *
+     * @param ioPermits the shared I/O budget, {@code null} if not bounded
+     */
+    DirectoryScanner(final Semaphore ioPermits) {
+        this.ioPermits = ioPermits;
+    }
+
+    /**
+     * List a directory.
+     *
+     * @param dir the directory
+     * @return the entries, {@code null} if it is not a readable directory
+     */
+    List<Entry> list(final File dir) {
+        listings++;
+        final List<Entry> entries = new ArrayList<Entry>();
+        acquire(dir);
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (final Path path : stream) {
+                final File file = path.toFile();
+                entries.add(new Entry(file, read(file)));
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            release();
+        }
+        return entries;
+    }
+
+    /**
+     * Read the attributes of a file, following symbolic links.
+     *
+     * @param file the file
+     * @return the attributes, {@code null} if the file does not exist
+     */
+    BasicFileAttributes readAttributes(final File file) {
+        acquire(file);
+        try {
+            return read(file);
+        } finally {
+            release();
+        }
+    }
+
+    private BasicFileAttributes read(final File file) {
+        attributeReads++;
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void acquire(final File file) {
+        if (ioPermits != null) {
+            try {
+                ioPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw processingError(e, "interrupted while scanning %s", file);
+            }
+        }
+    }
+
+    private void release() {
+        if (ioPermits != null) {
+            ioPermits.release();
+        }
+    }
+
+    /**
+     * Print the metrics of the scan, if enabled.
+     *
+     * @param root the distribution root
+     */
+    void report(final File root) {
+        if (METRICS) {
+            System.out.println(String.format("METRICS: scanned %s in %d ms, %d directory listings and %d attribute reads, %d file system calls",
+                    root.getAbsolutePath(), (System.nanoTime() - start) / 1000000, listings, attributeReads, listings + attributeReads));
+        }
+    }
+
+    /**
+     * A listed file and its attributes.
+     */
+    static final class Entry {
+
+        private final File file;
+        private final BasicFileAttributes attributes;
+
+        Entry(final File file, final BasicFileAttributes attributes) {
+            this.file = file;
+            this.attributes = attributes;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        String getName() {
+            return file.getName();
+        }
+
+        /**
+         * Get the attributes.
+         *
+         * @return the attributes, {@code null} if they could not be read
+         */
+        BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+
+        boolean isDirectory() {
+            return attributes != null && attributes.isDirectory();
+        }
+
+        boolean isRegularFile() {
+            return attributes != null && attributes.isRegularFile();
+        }
+
+        long getSize() {
+            return attributes == null ? 0L : attributes.size();
+        }
+
+        long getLastModified() {
+            return attributes == null ? 0L : attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * The total size and number of the files in a directory tree and the latest modification time of anything in it,
+     * added up from the listed entries instead of asking the file system again.
+     * <p/>
+     * The stats also keep the signature of the content, identifying it by the file key, size and modification time of
+     * every file, see {@link HashCache}.
+     */
+    static final class ContentStats {
+
+        private final String name;
+        private final Object fileKey;
+        // the signatures of the directory content by name, null for a file
+        private final Map<String, Object> content;
+        private Object signature;
+        private long size;
+        private long lastModified;
+        private int files;
+
+        /**
+         * Create the stats of a listed file, or of a listed directory without its content.
+         *
+         * @param entry the listed file or directory
+         */
+        ContentStats(final Entry entry) {
+            this.name = entry.getName();
+            this.fileKey = entry.getAttributes() == null ? null : entry.getAttributes().fileKey();
+            this.lastModified = entry.getLastModified();
+            if (entry.isDirectory()) {
+                content = new HashMap<String, Object>();
+                signature = content;
+            } else {
+                content = null;
+                signature = FileSignature.create(entry);
+                size = entry.getSize();
+                files = 1;
+            }
+        }
+
+        /**
+         * Add a listed file, or the modification time of a listed directory. The content of a directory added this way
+         * is unknown, add the stats of the directory instead.
+         *
+         * @param entry the listed file or directory
+         */
+        void add(final Entry entry) {
+            lastModified = Math.max(lastModified, entry.getLastModified());
+            if (entry.isDirectory()) {
+                signature = null;
+            } else {
+                size += entry.getSize();
+                files++;
+                addSignature(entry.getName(), FileSignature.create(entry));
+            }
+        }
+
+        /**
+         * Add the stats of a subtree.
+         *
+         * @param stats the stats, may be {@code null}
+         */
+        void add(final ContentStats stats) {
+            if (stats != null) {
+                size += stats.size;
+                lastModified = Math.max(lastModified, stats.lastModified);
+                files += stats.files;
+                addSignature(stats.name, stats.signature);
+            }
+        }
+
+        /**
+         * Skip a listed directory, whose content is not scanned. The signature no longer identifies the content.
+         */
+        void skip() {
+            signature = null;
+        }
+
+        private void addSignature(final String name, final Object signature) {
+            if (signature == null || content == null) {
+                this.signature = null;
+            } else if (this.signature != null) {
+                content.put(name, signature);
+            }
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        int getFiles() {
+            return files;
+        }
+
+        /**
+         * Get the file key of the listed file or directory itself.
+         *
+         * @return the file key, {@code null} if the file system does not provide one
+         */
+        Object getFileKey() {
+            return fileKey;
+        }
+
+        /**
+         * Get the signature of the content: the {@link FileSignature} of a file, or the signatures of the content of
+         * a directory by name.
+         *
+         * @return the signature, {@code null} if unknown, e.g. if the file system does not provide file keys
+         */
+        Object getSignature() {
+            return signature;
+        }
+    }
+
+    /**
+     * Identifies the content of a file by its file key, size and modification time.
+     */
+    static final class FileSignature {
+
+        private final Object fileKey;
+        private final long size;
+        private final FileTime lastModified;
+
+        private FileSignature(final Object fileKey, final long size, final FileTime lastModified) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Get the signature of a listed file.
+         *
+         * @param entry the listed file
+         * @return the signature, {@code null} if the file system does not provide a file key
+         */
+        static FileSignature create(final Entry entry) {
+            final BasicFileAttributes attributes = entry.getAttributes();
+            if (attributes == null || attributes.fileKey() == null) {
+                return null;
+            }
+            return new FileSignature(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime());
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof FileSignature)) {
+                return false;
+            }
+            final FileSignature other = (FileSignature) o;
+            return size == other.size && fileKey.equals(other.fileKey) && lastModified.equals(other.lastModified);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * fileKey.hashCode() + (int) (size ^ (size >>> 32))) + lastModified.hashCode();
+        }
+    }
+
+}
@@ -59,13 +59,45 @@ class Distribution {
      * @throws IOException
      */
     public static Distribution create(final File file, final String... ignored) throws IOException {
+        return create(file, null, ignored);
+    }
+
+    /**
+     * Create and process the distribution right away, scheduling the hashing of the content on the hashing service.
+     *
+     * @param file    the distribution root
+     * @param hashing the hashing service, {@code null} to calculate hashes lazily on first use
+     * @return the processed distribution
+     * @throws IOException
+     */
+    public static Distribution create(final File file, final HashingService hashing, final String... ignored) throws IOException {
+        return create(file, hashing, null, null, null, null, null, ignored);
+    }
+
+    /**
+     * Create and process the distribution right away, using the known hashes of the content instead of hashing it.
+     *
+     * @param file      the distribution root
+     * @param hashing   the hashing service, {@code null} to calculate hashes lazily on first use
+     * @param seeds     the known hashes of the content, may be {@code null}
+     * @param artifacts the hashes of files copied from a Maven repository, may be {@code null}
+     * @param changed   the paths known to be changed, may be {@code null}
+     * @param targets   the only content to process, {@code null} to process all content
+     * @param listener  notified once the name and version are resolved, before the content is scanned, and whenever a
+     *                  layer or add-on was scanned, may be {@code null}
+     * @return the processed distribution
+     * @throws IOException
+     */
+    static Distribution create(final File file, final HashingService hashing, final HashSeeds seeds, final ArtifactHashes artifacts, final ChangedPaths changed,
+                               final TargetedContent targets, final ScanListener listener, final String... ignored) throws IOException {
         final Distribution distribution = new Distribution();
         if (ignored != null) {
             for (String ignore : ignored) {
                 distribution.structure.registerIgnoredPath(ignore);
             }
         }
-        DistributionProcessor.process(distribution.ROOT, file, distribution);
+        DistributionProcessor.process(distribution.ROOT, file, distribution, hashing, seeds, artifacts, changed, targets, listener);
+        DistributionContentItem.freeze(distribution.ROOT);
         return distribution;
     }
 
@@ -166,7 +198,7 @@ class Distribution {
      * @return the layer
      */
     protected ProcessedLayer addLayer(final String name) {
-        return getOrCreate(name, layers);
+        return getOrCreate(name, layers, false);
     }
 
     /**
@@ -176,23 +208,48 @@ class Distribution {
      * @return the add-on
      */
     protected ProcessedLayer addAddOn(final String name) {
-        return getOrCreate(name, addOns);
+        return getOrCreate(name, addOns, true);
     }
 
-    private static ProcessedLayer getOrCreate(final String layerName, final Map<String, ProcessedLayer> layers) {
+    private static ProcessedLayer getOrCreate(final String layerName, final Map<String, ProcessedLayer> layers, final boolean addOn) {
         ProcessedLayer layer = layers.get(layerName);
         if (layer == null) {
-            layer = new ProcessedLayer(layerName);
+            layer = new ProcessedLayer(layerName, addOn);
             layers.put(layerName, layer);
         }
         return layer;
     }
 
+    /**
+     * Notified while a distribution is scanned, on the scanning thread.
+     */
+    interface ScanListener {
+
+        /**
+         * The name and version were resolved, before the content is scanned.
+         *
+         * @param name    the distribution name
+         * @param version the distribution version
+         */
+        void identityResolved(String name, String version);
+
+        /**
+         * All modules or all bundles of a layer or add-on were scanned, they are not modified afterwards. The layer may
+         * not be scanned completely yet, since the modules and bundles of a layer are scanned separately.
+         *
+         * @param layer   the layer or add-on
+         * @param bundles whether the bundles or the modules were scanned
+         */
+        void layerScanned(ProcessedLayer layer, boolean bundles);
+    }
+
     static class ProcessedLayer {
 
         private final String name;
-        ProcessedLayer(String name) {
+        private final boolean addOn;
+        ProcessedLayer(String name, boolean addOn) {
             this.name = name;
+            this.addOn = addOn;
         }
 
         private final Set<DistributionModuleItem> bundles = new TreeSet<DistributionModuleItem>();
@@ -202,6 +259,10 @@ class Distribution {
             return name;
         }
 
+        boolean isAddOn() {
+            return addOn;
+        }
+
         /**
          * Get the available bundles.
          *
@@ -247,9 +308,8 @@ class Distribution {
         protected DistributionModuleItem createDistributionModuleItem(final DistributionContentItem item) {
             final String moduleName = item.getParent().getPath('.');
             final String slot = item.getName();
-            final byte[] metadata = item.getMetadataHash();
-            final byte[] comparison = item.getComparisonHash();
-            return new DistributionModuleItem(moduleName, slot, comparison, metadata);
+            // Hashes are resolved lazily, or computed by the hashing service in the meantime
+            return new DistributionModuleItem(moduleName, slot, item);
         }
 
     }
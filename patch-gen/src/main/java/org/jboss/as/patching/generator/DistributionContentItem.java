@@ -23,11 +23,18 @@
 package org.jboss.as.patching.generator;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,12 +49,40 @@ abstract class DistributionContentItem implements Comparable<DistributionContent
     static final char PATH_DELIMITER = '/';
     static final Set<DistributionContentItem> NO_CHILDREN = Collections.emptySet();
 
+    // The names are shared between all trees, most of them occur in both distributions
+    private static final ConcurrentMap<String, String> NAMES = new ConcurrentHashMap<String, String>();
+    // identifies the frozen trees, the ordinals of different trees cannot be compared
+    private static final AtomicInteger TREES = new AtomicInteger();
+
     protected final DistributionContentItem parent;
     protected final String name;
+    private final int depth;
+    private final int hash;
+    // the tree in the upper and the pre-order position in the lower half, 0 until the tree is frozen
+    private long ordinal;
 
     protected DistributionContentItem(final DistributionContentItem parent, final String name) {
         this.parent = parent;
-        this.name = name;
+        this.name = intern(name);
+        this.depth = parent == null ? 1 : parent.depth + 1;
+        int result = 17;
+        result = 31 * result + (parent == null ? 0 : parent.hash);
+        result = 31 * result + (name == null ? 0 : name.hashCode());
+        this.hash = result;
+    }
+
+    /**
+     * Get the shared instance of a name.
+     *
+     * @param name the name
+     * @return the shared name
+     */
+    static String intern(final String name) {
+        if (name == null) {
+            return null;
+        }
+        final String existing = NAMES.putIfAbsent(name, name);
+        return existing == null ? name : existing;
     }
 
     /**
@@ -64,6 +99,16 @@ abstract class DistributionContentItem implements Comparable<DistributionContent
      */
     public abstract byte[] getComparisonHash();
 
+    /**
+     * Get the comparison hash computed using SHA1, which confirms that an item did not change when the comparison hash
+     * uses a non-cryptographic digest.
+     *
+     * @return the hash used to confirm the comparison
+     */
+    public byte[] getStrongComparisonHash() {
+        return getComparisonHash();
+    }
+
     /**
      * See whether this item is a leaf in the tree.
      *
@@ -99,106 +144,140 @@ abstract class DistributionContentItem implements Comparable<DistributionContent
     }
 
     public String getPath(char delimiter) {
-        StringBuilder sb = new StringBuilder();
-        recordPath(sb, delimiter);
-        return sb.toString();
-    }
-
-    private void recordPath(StringBuilder sb, char delimiter) {
-        if (parent != null) {
-            parent.recordPath(sb, delimiter);
-            if (sb.length() > 0) {
+        final String[] segments = getPathSegments();
+        int length = Math.max(0, segments.length - 1);
+        for (final String segment : segments) {
+            length += segment.length();
+        }
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) {
                 sb.append(delimiter);
             }
+            sb.append(segments[i]);
         }
-
-        if (name != null) {
-            sb.append(name);
-        }
+        return sb.toString();
     }
 
     public List<String> getPathAsList() {
-        List<String> list = new ArrayList<String>();
-        recordPath(list);
-        return list;
+        return Arrays.asList(getPathSegments());
     }
 
-    private void recordPath(List<String> list) {
-        if (parent != null) {
-            parent.recordPath(list);
+    /**
+     * Get the names from the root to this item, excluding unnamed items like the root itself.
+     *
+     * @return the path segments
+     */
+    String[] getPathSegments() {
+        int count = 0;
+        for (DistributionContentItem item = this; item != null; item = item.parent) {
+            if (item.name != null) {
+                count++;
+            }
         }
-
-        if (name != null) {
-            list.add(name);
+        final String[] segments = new String[count];
+        for (DistributionContentItem item = this; item != null; item = item.parent) {
+            if (item.name != null) {
+                segments[--count] = item.name;
+            }
         }
+        return segments;
     }
 
     public int getDepth() {
-        int depth = 1;
-        DistributionContentItem ancestor = parent;
-        while (ancestor != null) {
-            depth++;
-            ancestor = ancestor.parent;
-        }
         return depth;
     }
 
+    /**
+     * Freeze a tree once it is complete, sorting the children and numbering the items in pre-order. Items of the same
+     * frozen tree are then compared by their number.
+     *
+     * @param root the root of the tree
+     */
+    static void freeze(final DistributionContentItem root) {
+        final long tree = (long) TREES.incrementAndGet() << 32;
+        long position = 0;
+        final ArrayDeque<DistributionContentItem> stack = new ArrayDeque<DistributionContentItem>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final DistributionContentItem item = stack.pop();
+            item.ordinal = tree | position++;
+            final Collection<DistributionContentItem> children = item.getChildren();
+            if (children instanceof Children) {
+                ((Children) children).freeze();
+            }
+            if (!children.isEmpty()) {
+                // Push in reverse, so that the first child is numbered next
+                final DistributionContentItem[] array = children.toArray(new DistributionContentItem[children.size()]);
+                for (int i = array.length - 1; i >= 0; i--) {
+                    stack.push(array[i]);
+                }
+            }
+        }
+    }
+
     @Override
     public int hashCode() {
-        int result = 17;
-        result = 31 * result + (parent == null ? 0 : parent.hashCode());
-        result = 31 * result + (name == null ? 0 : name.hashCode());
-        return result;
+        return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
-        boolean result = this == obj;
-        if (!result && obj instanceof DistributionContentItem) {
-            DistributionContentItem other = (DistributionContentItem) obj;
-            result = (parent == other.parent) || (parent != null && parent.equals(other.parent));
-            result = result && (same(name, other.name) || (name != null && name.equals(other.name)));
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof DistributionContentItem)) {
+            return false;
+        }
+        DistributionContentItem item = this;
+        DistributionContentItem other = (DistributionContentItem) obj;
+        if (hash != other.hash || depth != other.depth) {
+            return false;
+        }
+        // Names are interned, walk up until both share the same parent
+        while (item != other) {
+            if (!same(item.name, other.name)) {
+                return false;
+            }
+            item = item.parent;
+            other = other.parent;
         }
-        return result;
+        return true;
     }
 
     @Override
     public int compareTo(DistributionContentItem o) {
+        if (this == o) {
+            return 0;
+        }
+        final long tree = ordinal & 0xffffffff00000000L;
+        if (tree != 0 && tree == (o.ordinal & 0xffffffff00000000L)) {
+            return Long.compare(ordinal, o.ordinal);
+        }
 
         // If the two items are at different depths in the tree, compare their ancestors at the same depth
-        int myDepth = getDepth();
-        int theirDepth = o.getDepth();
-        if (myDepth != theirDepth) {
-            DistributionContentItem me = this;
-            DistributionContentItem them = o;
-            if (myDepth < theirDepth) {
-                them = o.getAncestor(theirDepth - myDepth);
-            } else if (theirDepth < myDepth) {
-                me = getAncestor(myDepth - theirDepth);
-            }
-
-            int result = me.compareTo(them);
-            if (result != 0) {
-                return result;
-            } else {
-                return myDepth > theirDepth ? 1 : -1;
-            }
+        DistributionContentItem me = this;
+        DistributionContentItem them = o;
+        if (depth < o.depth) {
+            them = o.getAncestor(o.depth - depth);
+        } else if (o.depth < depth) {
+            me = getAncestor(depth - o.depth);
         }
-
-        // Same depth
-        if (parent != o.parent) {
-            if (parent == null) {
-                return -1;
-            } else if (o.parent == null) {
-                return 1;
-            } else {
-                int result = parent.compareTo(o.parent);
-                if (result != 0) {
-                    return result;
-                }
-            }
+        final int result = me.compareSameDepth(them);
+        if (result != 0 || depth == o.depth) {
+            return result;
         }
+        return depth > o.depth ? 1 : -1;
+    }
 
+    private int compareSameDepth(final DistributionContentItem o) {
+        if (this == o) {
+            return 0;
+        }
+        // Compare the ancestors first
+        final int result = parent == null ? 0 : parent.compareSameDepth(o.parent);
+        if (result != 0) {
+            return result;
+        }
         if (same(name, o.name)) {
             return 0;
         } else if (name == null) {
@@ -222,6 +301,103 @@ abstract class DistributionContentItem implements Comparable<DistributionContent
         return a == b;
     }
 
+    /**
+     * The children of a directory, a sorted array which is far smaller than a {@code TreeSet}. Children are appended
+     * while the tree is built, and sorted with duplicates dropped once by {@link #freeze()}. The set cannot be read
+     * before it is frozen, nor modified afterwards. It is not thread-safe before it is frozen, the tree has to be built
+     * by a single thread.
+     */
+    static final class Children extends AbstractSet<DistributionContentItem> {
+
+        private static final DistributionContentItem[] EMPTY = new DistributionContentItem[0];
+
+        private DistributionContentItem[] items = EMPTY;
+        private int size;
+        private boolean frozen;
+
+        /**
+         * Append a child, duplicates are only dropped when the set is frozen.
+         *
+         * @param item the child
+         * @return {@code true}
+         * @throws UnsupportedOperationException if the set is frozen
+         */
+        @Override
+        public boolean add(final DistributionContentItem item) {
+            if (frozen) {
+                throw new UnsupportedOperationException();
+            }
+            if (size == items.length) {
+                items = Arrays.copyOf(items, Math.max(4, size + (size >> 1)));
+            }
+            items[size++] = item;
+            return true;
+        }
+
+        @Override
+        public Iterator<DistributionContentItem> iterator() {
+            checkFrozen();
+            return new Iterator<DistributionContentItem>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public DistributionContentItem next() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return items[index++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            checkFrozen();
+            return size;
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            checkFrozen();
+            return o instanceof DistributionContentItem && Arrays.binarySearch(items, 0, size, o) >= 0;
+        }
+
+        /**
+         * Sort the children and drop duplicates, nothing can be added afterwards.
+         */
+        void freeze() {
+            if (frozen) {
+                return;
+            }
+            Arrays.sort(items, 0, size);
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (count == 0 || items[count - 1].compareTo(items[i]) != 0) {
+                    items[count++] = items[i];
+                }
+            }
+            items = count == items.length ? items : Arrays.copyOf(items, count);
+            size = count;
+            frozen = true;
+        }
+
+        private void checkFrozen() {
+            if (!frozen) {
+                throw new IllegalStateException("children are read before the tree is frozen");
+            }
+        }
+    }
+
     interface Filter {
 
         boolean accept(DistributionContentItem item);
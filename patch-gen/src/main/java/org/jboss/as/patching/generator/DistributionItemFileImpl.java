@@ -26,65 +26,346 @@ import static org.jboss.as.patching.generator.PatchGenerator.processingError;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableFuture;
 
-import org.jboss.as.patching.HashUtils;
 
 /**
  * File based content item implementation.
+ * <p/>
+ * The items of both distributions are kept in memory, so they are kept small: the file type is read once, the SHA1
+ * metadata hash is stored inline, a comparison hash equal to it is not stored again, and only items without a file
+ * based parent keep their file.
  *
  * @author Emanuel Muckenhuber
  */
 class DistributionItemFileImpl extends DistributionContentItem {
 
-    private final File file;
+    private static final int SHA1_LENGTH = 20;
+    // marks a comparison hash equal to the metadata hash
+    private static final byte[] SAME_AS_METADATA = new byte[0];
+
+    // the file, only for items which cannot resolve it from their parent
+    private final File anchor;
+    private final boolean leaf;
     private final Set<DistributionContentItem> children;
-    private byte[] cachedMetadataHash = null;
+    // the metadata hash, valid once published
+    private long metadataHash0;
+    private long metadataHash1;
+    private int metadataHash2;
+    private volatile boolean metadataHashed;
+    private volatile byte[] cachedComparisonHash = null;
+    private volatile byte[] cachedStrongComparisonHash = null;
+    // the scheduled hash computation, if any
+    private volatile RunnableFuture<?> pendingHash = null;
+    // the hashes shared with identical items, if any
+    private volatile HashCache hashCache = null;
+    // the signature of the content as scanned, until the scheduled hashes are computed
+    private volatile Object contentSignature = null;
+    // the changed paths not listing this item, if any
+    private volatile ChangedPaths unlistedIn = null;
+    // the size, latest modification time and number of files of the content as scanned, size -1 if unknown
+    private long contentSize = -1;
+    private long contentModified;
+    private int contentFiles;
 
     protected DistributionItemFileImpl(File file, DistributionContentItem parent) {
         this(file, parent, file.getName());
     }
 
     protected DistributionItemFileImpl(File file, DistributionContentItem parent, String name) {
+        this(file, parent, name, readAttributes(file));
+    }
+
+    /**
+     * Create an item using the already known attributes of the file.
+     *
+     * @param file       the file
+     * @param parent     the parent item
+     * @param attributes the attributes of the file, {@code null} if they could not be read
+     */
+    DistributionItemFileImpl(File file, DistributionContentItem parent, BasicFileAttributes attributes) {
+        this(file, parent, file.getName(), attributes);
+    }
+
+    private DistributionItemFileImpl(File file, DistributionContentItem parent, String name, BasicFileAttributes attributes) {
         super(parent, name);
-        this.file = file;
-        if (file.isDirectory()) {
-            children = new TreeSet<DistributionContentItem>();
+        // Items are created for the files of the parent item's directory
+        this.anchor = parent instanceof DistributionItemFileImpl && file.getName().equals(name) ? null : file;
+        this.leaf = attributes != null && attributes.isRegularFile();
+        if (attributes != null && attributes.isDirectory()) {
+            children = new Children();
         } else {
             children = NO_CHILDREN;
         }
     }
 
-    @Override
-    public String getName() {
-        return file.getName();
+    private static BasicFileAttributes readAttributes(final File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    File getFile() {
+        final File anchor = this.anchor;
+        if (anchor != null) {
+            return anchor;
+        }
+        return new File(((DistributionItemFileImpl) parent).getFile(), name);
     }
 
     @Override
     public byte[] getMetadataHash() {
-        try {
-            if (cachedMetadataHash == null) {
-                cachedMetadataHash = HashUtils.hashFile(file);
+        if (!metadataHashed) {
+            awaitPendingHash();
+            if (!metadataHashed) {
+                return computeMetadataHash();
             }
-            return cachedMetadataHash;
-        } catch (IOException e) {
-            throw processingError(e, "failed to generate hash");
         }
+        return unpackMetadataHash();
     }
 
     @Override
     public byte[] getComparisonHash() {
+        byte[] hash = cachedComparisonHash;
+        if (hash == null) {
+            awaitPendingHash();
+            hash = cachedComparisonHash;
+            if (hash == null) {
+                hash = computeComparisonHash();
+            }
+        }
+        return hash == SAME_AS_METADATA ? getMetadataHash() : hash;
+    }
+
+    @Override
+    public byte[] getStrongComparisonHash() {
+        if (!ComparisonDigest.CONFIRM) {
+            return getComparisonHash();
+        }
+        byte[] hash = cachedStrongComparisonHash;
+        if (hash == null) {
+            try {
+                hash = JarDiffUtils.calculateHash(getFile(), this, true, hashCache);
+                cachedStrongComparisonHash = hash;
+            } catch (Exception e) {
+                throw processingError(e, "failed to generate hash");
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Compute and publish the hashes, called from the {@link HashingService}.
+     */
+    void computeHashes() {
+        final HashCache cache = hashCache;
+        // A seeded metadata hash is not derived from the content, do not share it
+        if (cache == null || metadataHashed) {
+            calculateHashes();
+            return;
+        }
         try {
-            return JarDiffUtils.calculateHash(file, this);
+            final byte[][] hashes = cache.getHashes(this);
+            setMetadataHash(hashes[0]);
+            setComparisonHash(hashes[1]);
+        } catch (IOException e) {
+            throw processingError(e, "failed to generate hash");
+        } finally {
+            contentSignature = null;
+        }
+    }
+
+    /**
+     * Compute the hashes of this item.
+     *
+     * @return the metadata and the comparison hash
+     */
+    byte[][] calculateHashes() {
+        final byte[] metadataHash = metadataHashed ? unpackMetadataHash() : computeMetadataHash();
+        byte[] comparisonHash = cachedComparisonHash;
+        if (comparisonHash == null) {
+            comparisonHash = computeComparisonHash();
+        } else if (comparisonHash == SAME_AS_METADATA) {
+            comparisonHash = metadataHash;
+        }
+        return new byte[][] {metadataHash, comparisonHash};
+    }
+
+    private byte[] computeMetadataHash() {
+        try {
+            final byte[] hash = FileHashing.hashFile(getFile());
+            setMetadataHash(hash);
+            return hash;
+        } catch (IOException e) {
+            throw processingError(e, "failed to generate hash");
+        }
+    }
+
+    private byte[] computeComparisonHash() {
+        try {
+            final byte[] hash = JarDiffUtils.calculateHash(getFile(), this, false, hashCache);
+            setComparisonHash(hash);
+            return hash;
         } catch (Exception e) {
             throw processingError(e, "failed to generate hash");
         }
     }
 
+    /**
+     * Use a known metadata hash instead of hashing the content.
+     *
+     * @param hash the SHA1 metadata hash
+     */
+    void setMetadataHash(final byte[] hash) {
+        if (hash.length != SHA1_LENGTH) {
+            throw processingError("invalid metadata hash for %s", getPath());
+        }
+        metadataHash0 = getLong(hash, 0);
+        metadataHash1 = getLong(hash, 8);
+        metadataHash2 = getInt(hash, 16);
+        // publishes the hash
+        metadataHashed = true;
+    }
+
+    /**
+     * Use a known comparison hash instead of hashing the content.
+     *
+     * @param hash the comparison hash
+     */
+    void setComparisonHash(final byte[] hash) {
+        this.cachedComparisonHash = isMetadataHash(hash) ? SAME_AS_METADATA : hash;
+    }
+
+    private boolean isMetadataHash(final byte[] hash) {
+        return metadataHashed && hash.length == SHA1_LENGTH && getLong(hash, 0) == metadataHash0 && getLong(hash, 8) == metadataHash1
+                && getInt(hash, 16) == metadataHash2;
+    }
+
+    private byte[] unpackMetadataHash() {
+        final byte[] hash = new byte[SHA1_LENGTH];
+        putLong(hash, 0, metadataHash0);
+        putLong(hash, 8, metadataHash1);
+        putInt(hash, 16, metadataHash2);
+        return hash;
+    }
+
+    private static long getLong(final byte[] bytes, final int offset) {
+        return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putLong(final byte[] bytes, final int offset, final long value) {
+        putInt(bytes, offset, (int) (value >>> 32));
+        putInt(bytes, offset + 4, (int) value);
+    }
+
+    private static void putInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Share the hashes with identical items.
+     *
+     * @param hashCache the hash cache
+     * @param signature the signature of the content as scanned, {@code null} if unknown
+     */
+    void setHashCache(final HashCache hashCache, final Object signature) {
+        this.hashCache = hashCache;
+        this.contentSignature = hashCache == null ? null : signature;
+    }
+
+    /**
+     * Get the signature of the content as scanned, see {@link DirectoryScanner.ContentStats#getSignature()}.
+     *
+     * @return the signature, {@code null} if unknown or once the scheduled hashes are computed
+     */
+    Object getContentSignature() {
+        return contentSignature;
+    }
+
+    void setPendingHash(final RunnableFuture<?> pendingHash) {
+        this.pendingHash = pendingHash;
+    }
+
+    private void awaitPendingHash() {
+        final RunnableFuture<?> pending = pendingHash;
+        if (pending == null) {
+            return;
+        }
+        // Compute it on this thread if no worker picked it up yet
+        pending.run();
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw processingError(e, "interrupted while waiting for hash");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw processingError(e, "failed to generate hash");
+        } finally {
+            pendingHash = null;
+        }
+    }
+
+    ChangedPaths getUnlistedIn() {
+        return unlistedIn;
+    }
+
+    void setUnlistedIn(final ChangedPaths unlistedIn) {
+        this.unlistedIn = unlistedIn;
+    }
+
+    /**
+     * Get the size of the content as scanned, for a directory the total size of the contained files.
+     *
+     * @return the size, {@code -1} if unknown
+     */
+    long getContentSize() {
+        return contentSize;
+    }
+
+    /**
+     * Get the latest modification time of the content as scanned.
+     *
+     * @return the modification time in milliseconds since the epoch
+     */
+    long getContentModified() {
+        return contentModified;
+    }
+
+    /**
+     * Get the number of files of the content as scanned, 1 for a file.
+     *
+     * @return the number of files
+     */
+    int getContentFiles() {
+        return contentFiles;
+    }
+
+    void setContentStats(final DirectoryScanner.ContentStats stats) {
+        this.contentSize = stats.getSize();
+        this.contentModified = stats.getLastModified();
+        this.contentFiles = stats.getFiles();
+    }
+
     @Override
     public boolean isLeaf() {
-        return file.isFile();
+        return leaf;
     }
 
     @Override
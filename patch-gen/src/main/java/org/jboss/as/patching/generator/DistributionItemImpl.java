@@ -23,7 +23,6 @@
 package org.jboss.as.patching.generator;
 
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Metadata based implementation of a content item.
@@ -45,7 +44,7 @@ class DistributionItemImpl extends DistributionContentItem {
         if (leaf) {
             this.children = NO_CHILDREN;
         } else {
-            this.children = new TreeSet<DistributionContentItem>();
+            this.children = new Children();
         }
     }
 
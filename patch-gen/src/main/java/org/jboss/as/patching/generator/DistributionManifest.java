@@ -0,0 +1,250 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jboss.as.patching.HashUtils;
+
+/**
+ * The hashes of a distribution, recorded by the build which assembled it in {@code .patch-gen-manifest} at the
+ * distribution root, and trusted instead of hashing the content again.
+ * <p/>
+ * The manifest is a UTF-8 text file. The first line is the header {@code #patch-gen-manifest 1 <settings>}, where the
+ * settings describe how the comparison hashes were calculated. Each following line describes a module, bundle or misc
+ * file:
+ * <pre>
+ * &lt;size&gt; &lt;mtime&gt; &lt;files&gt; &lt;metadata-hash&gt; &lt;comparison-hash&gt; &lt;path&gt;
+ * </pre>
+ * The path is relative to the distribution root and separated by {@code /}, the size is in bytes, the modification
+ * time in milliseconds since the epoch, and the number of files is 1 for a misc file. For a module or bundle directory
+ * these are the total size and number of the contained files, and the latest modification time of the directory and
+ * anything in it, except {@code .overlays} directories. The hashes are hex encoded, the metadata hash is SHA1.
+ * <p/>
+ * An entry is only trusted while the size, modification time and number of files still match. These are collected by
+ * the scan from the listed attributes, so validating an entry does not access the file system. The comparison hashes
+ * are only trusted if the settings match the current ones, otherwise only the metadata hashes are used. Can be
+ * disabled using the {@code patch.gen.manifest} system property.
+ */
+class DistributionManifest {
+
+    static final String FILE_NAME = ".patch-gen-manifest";
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("patch.gen.manifest", "true"));
+
+    private static final String HEADER = "#patch-gen-manifest";
+    private static final String VERSION = "1";
+    private static final int SHA1_HEX_LENGTH = 40;
+
+    private final Map<String, Entry> entries;
+    // whether the comparison hashes were calculated using the current settings
+    private final boolean comparable;
+
+    private DistributionManifest(final Map<String, Entry> entries, final boolean comparable) {
+        this.entries = entries;
+        this.comparable = comparable;
+    }
+
+    /**
+     * Load the manifest of a distribution.
+     *
+     * @param root the distribution root
+     * @return the manifest, {@code null} if there is no valid manifest
+     */
+    static DistributionManifest load(final File root) {
+        final File file = new File(root, FILE_NAME);
+        if (!ENABLED || !file.isFile()) {
+            return null;
+        }
+        try {
+            return parse(file);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("WARN: ignoring invalid manifest " + file.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static DistributionManifest parse(final File file) throws IOException {
+        try (final BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            final String[] parts = header == null ? new String[0] : header.split(" ", 3);
+            if (parts.length != 3 || !HEADER.equals(parts[0]) || !VERSION.equals(parts[1])) {
+                throw new IllegalArgumentException("unsupported header " + header);
+            }
+            final boolean comparable = parts[2].equals(JarDiffUtils.getComparisonSettings());
+            final Map<String, Entry> entries = new HashMap<String, Entry>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] fields = line.split(" ", 6);
+                if (fields.length != 6) {
+                    throw new IllegalArgumentException("malformed entry " + line);
+                }
+                if (fields[3].length() != SHA1_HEX_LENGTH) {
+                    throw new IllegalArgumentException("invalid metadata hash " + line);
+                }
+                final Entry entry = new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        HashUtils.hexStringToByteArray(fields[3]), HashUtils.hexStringToByteArray(fields[4]));
+                entries.put(fields[5], entry);
+            }
+            return new DistributionManifest(entries, comparable);
+        }
+    }
+
+    /**
+     * Use the recorded hashes of an item, if its content did not change since the manifest was created.
+     *
+     * @param item the content item, with the stats of its content as scanned
+     * @param path the path relative to the distribution root
+     * @return {@code true} if both hashes are known, {@code false} if the item still needs to be hashed
+     */
+    boolean apply(final DistributionItemFileImpl item, final String path) {
+        final Entry entry = entries.get(path);
+        if (entry == null || !entry.matches(item)) {
+            return false;
+        }
+        item.setMetadataHash(entry.metadataHash);
+        if (!comparable) {
+            return false;
+        }
+        item.setComparisonHash(entry.comparisonHash);
+        return true;
+    }
+
+    /**
+     * Create the manifest of a distribution. The distribution must not be modified meanwhile.
+     *
+     * @param root the distribution root
+     * @return the manifest file
+     * @throws IOException
+     */
+    static File create(final File root) throws IOException {
+        final HashingService hashing = HashingService.create();
+        try {
+            // Include all content, a present manifest only saves hashing what did not change since
+            final Distribution distribution = Distribution.create(root, hashing);
+            return write(root, distribution);
+        } finally {
+            hashing.shutdown();
+        }
+    }
+
+    /**
+     * Write the manifest of a scanned distribution, using the stats of the content collected by the scan.
+     *
+     * @param root         the distribution root
+     * @param distribution the distribution
+     * @return the manifest file
+     * @throws IOException
+     */
+    static File write(final File root, final Distribution distribution) throws IOException {
+        final Map<String, DistributionItemFileImpl> items = new TreeMap<String, DistributionItemFileImpl>();
+        collectMisc(root, distribution.getRoot(), items);
+        for (final String layer : distribution.getLayers()) {
+            collectModules(root, distribution.getLayer(layer), items);
+        }
+        for (final String addOn : distribution.getAddOns()) {
+            collectModules(root, distribution.getAddOn(addOn), items);
+        }
+
+        final File file = new File(root, FILE_NAME);
+        final File tmp = new File(root, FILE_NAME + ".tmp");
+        try (final Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER + ' ' + VERSION + ' ' + JarDiffUtils.getComparisonSettings() + '\n');
+            for (final Map.Entry<String, DistributionItemFileImpl> entry : items.entrySet()) {
+                final DistributionItemFileImpl item = entry.getValue();
+                writer.write(item.getContentSize() + " " + item.getContentModified() + " " + item.getContentFiles() + " "
+                        + HashUtils.bytesToHexString(item.getMetadataHash()) + ' ' + HashUtils.bytesToHexString(item.getComparisonHash()) + ' '
+                        + entry.getKey() + '\n');
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    private static void collectMisc(final File root, final DistributionContentItem parent, final Map<String, DistributionItemFileImpl> items) {
+        for (final DistributionContentItem child : parent.getChildren()) {
+            if (child.isLeaf()) {
+                final DistributionItemFileImpl item = (DistributionItemFileImpl) child;
+                items.put(getPath(root, item.getFile()), item);
+            } else {
+                collectMisc(root, child, items);
+            }
+        }
+    }
+
+    private static void collectModules(final File root, final Distribution.ProcessedLayer layer, final Map<String, DistributionItemFileImpl> items) {
+        for (final DistributionModuleItem module : layer.getModules()) {
+            final DistributionItemFileImpl item = (DistributionItemFileImpl) module.getItem();
+            items.put(getPath(root, item.getFile()), item);
+        }
+        for (final DistributionModuleItem bundle : layer.getBundles()) {
+            final DistributionItemFileImpl item = (DistributionItemFileImpl) bundle.getItem();
+            items.put(getPath(root, item.getFile()), item);
+        }
+    }
+
+    /**
+     * Get the path of a file as recorded in the manifest.
+     *
+     * @param root the distribution root
+     * @param file the file
+     * @return the '/' separated path relative to the distribution root
+     */
+    static String getPath(final File root, final File file) {
+        return root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    static final class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final long files;
+        private final byte[] metadataHash;
+        private final byte[] comparisonHash;
+
+        Entry(final long size, final long lastModified, final long files, final byte[] metadataHash, final byte[] comparisonHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.files = files;
+            this.metadataHash = metadataHash;
+            this.comparisonHash = comparisonHash;
+        }
+
+        boolean matches(final DistributionItemFileImpl item) {
+            return item.getContentSize() == size && item.getContentModified() == lastModified && item.getContentFiles() == files;
+        }
+    }
+
+}
@@ -23,20 +23,39 @@
 package org.jboss.as.patching.generator;
 
 /**
+ * A module or bundle, identified by its name and slot. Names and slots are interned, so that items are compared
+ * without building the {@code name:slot} strings.
+ *
  * @author Emanuel Muckenhuber
  */
 class DistributionModuleItem implements Comparable<DistributionModuleItem> {
 
+    private static final char SEPARATOR = ':';
+
     private final String moduleName;
     private final String slot;
+    private final int hash;
     private final byte[] comparisonHash;
     private final byte[] metadataHash;
+    // the content item, which resolves the hashes lazily
+    private final DistributionContentItem item;
 
     DistributionModuleItem(String moduleName, String slot, byte[] comparisonHash, byte[] metadataHash) {
-        this.moduleName = moduleName;
-        this.slot = slot;
+        this.moduleName = DistributionContentItem.intern(moduleName);
+        this.slot = DistributionContentItem.intern(slot);
+        this.hash = hash(moduleName, slot);
         this.metadataHash = metadataHash;
         this.comparisonHash = comparisonHash;
+        this.item = null;
+    }
+
+    DistributionModuleItem(String moduleName, String slot, DistributionContentItem item) {
+        this.moduleName = DistributionContentItem.intern(moduleName);
+        this.slot = DistributionContentItem.intern(slot);
+        this.hash = hash(moduleName, slot);
+        this.metadataHash = null;
+        this.comparisonHash = null;
+        this.item = item;
     }
 
     String getName() {
@@ -48,15 +67,29 @@ class DistributionModuleItem implements Comparable<DistributionModuleItem> {
     }
 
     byte[] getMetadataHash() {
-        return metadataHash;
+        return item == null ? metadataHash : item.getMetadataHash();
     }
 
     byte[] getComparisonHash() {
-        return comparisonHash;
+        return item == null ? comparisonHash : item.getComparisonHash();
+    }
+
+    DistributionContentItem getItem() {
+        return item;
+    }
+
+    byte[] getStrongComparisonHash() {
+        return item == null ? comparisonHash : item.getStrongComparisonHash();
     }
 
     String getFullModuleName() {
-        return moduleName + ":" + slot;
+        return moduleName + SEPARATOR + slot;
+    }
+
+    private static int hash(final String moduleName, final String slot) {
+        int result = moduleName.hashCode();
+        result = 31 * result + slot.hashCode();
+        return result;
     }
 
     @Override
@@ -66,20 +99,41 @@ class DistributionModuleItem implements Comparable<DistributionModuleItem> {
 
         DistributionModuleItem that = (DistributionModuleItem) o;
 
-        if (!moduleName.equals(that.moduleName)) return false;
-        return slot.equals(that.slot);
-
+        // Names and slots are interned
+        return hash == that.hash && moduleName == that.moduleName && slot == that.slot;
     }
 
     @Override
     public int hashCode() {
-        int result = moduleName.hashCode();
-        result = 31 * result + slot.hashCode();
-        return result;
+        return hash;
     }
 
+    /**
+     * Compare the items in the order of their full module names, {@code name:slot}.
+     */
     @Override
     public int compareTo(DistributionModuleItem o) {
-        return getFullModuleName().compareTo(o.getFullModuleName());
+        if (moduleName == o.moduleName) {
+            return slot == o.slot ? 0 : slot.compareTo(o.slot);
+        }
+        final int length = moduleName.length() + 1 + slot.length();
+        final int otherLength = o.moduleName.length() + 1 + o.slot.length();
+        final int limit = Math.min(length, otherLength);
+        for (int i = 0; i < limit; i++) {
+            final char c = charAt(i);
+            final char other = o.charAt(i);
+            if (c != other) {
+                return c - other;
+            }
+        }
+        return length - otherLength;
+    }
+
+    private char charAt(final int index) {
+        final int length = moduleName.length();
+        if (index < length) {
+            return moduleName.charAt(index);
+        }
+        return index == length ? SEPARATOR : slot.charAt(index - length - 1);
     }
 }
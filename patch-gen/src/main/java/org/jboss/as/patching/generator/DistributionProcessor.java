@@ -25,19 +25,18 @@ package org.jboss.as.patching.generator;
 import static org.jboss.as.patching.generator.PatchGenerator.processingError;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.jboss.as.patching.installation.LayersConfig;
+import org.jboss.as.patching.metadata.ContentType;
 import org.jboss.modules.LocalModuleLoader;
 import org.jboss.modules.Module;
 import org.jboss.modules.ModuleIdentifier;
@@ -50,15 +49,32 @@ import org.jboss.modules.ModuleLoader;
  */
 class DistributionProcessor {
 
-    private Set<DistributionContentItem> moduleRoots = new LinkedHashSet<DistributionContentItem>();
-
+    private final HashingService hashing;
+    private final HashSeeds seeds;
+    private final ArtifactHashes artifacts;
+    private final ChangedPaths changedPaths;
+    private final TargetedContent targets;
+    private final DistributionManifest manifest;
+    private final File distributionRoot;
+    private final DirectoryScanner scanner;
+    private Distribution.ScanListener listener;
+
+    private static final String MODULES = "modules";
     // Maybe fail if we find an overlay directory
-    private final FilenameFilter OVERLAYS_FILTER = new FilenameFilter() {
-        @Override
-        public boolean accept(File dir, String name) {
-            return !name.equals(".overlays");
-        }
-    };
+    private static final String OVERLAYS = ".overlays";
+    private static final String MODULE_XML = "module.xml";
+
+    DistributionProcessor(final HashingService hashing, final HashSeeds seeds, final ArtifactHashes artifacts, final ChangedPaths changedPaths,
+                          final TargetedContent targets, final File distributionRoot) {
+        this.hashing = hashing;
+        this.seeds = seeds;
+        this.artifacts = artifacts;
+        this.changedPaths = changedPaths;
+        this.targets = targets;
+        this.manifest = DistributionManifest.load(distributionRoot);
+        this.distributionRoot = distributionRoot;
+        this.scanner = new DirectoryScanner(hashing == null ? null : hashing.getIoPermits());
+    }
 
     /**
      * Process a distribution root.
@@ -66,26 +82,47 @@ class DistributionProcessor {
      * @param parent           the misc root
      * @param distributionRoot the distribution root
      * @param distribution     the distribution
+     * @param hashing          the hashing service, may be {@code null}
+     * @param seeds            the known hashes of the content, may be {@code null}
+     * @param artifacts        the hashes of files copied from a Maven repository, may be {@code null}
+     * @param changedPaths     the paths known to be changed, may be {@code null}
+     * @param targets          the only content to process, {@code null} to process all content
+     * @param listener         notified once the name and version are resolved and whenever a layer was scanned, may be {@code null}
      * @throws IOException
      */
-    static void process(final DistributionContentItem parent, final File distributionRoot, Distribution distribution) throws IOException {
-        final DistributionProcessor processor = new DistributionProcessor();
-        final File[] children = distributionRoot.listFiles();
-        if (children != null && children.length != 0) {
-            for (final File child : children) {
+    static void process(final DistributionContentItem parent, final File distributionRoot, Distribution distribution, final HashingService hashing,
+                        final HashSeeds seeds, final ArtifactHashes artifacts, final ChangedPaths changedPaths, final TargetedContent targets,
+                        final Distribution.ScanListener listener) throws IOException {
+        // Resolve the name and version first, a mismatch is reported without waiting for the scan
+        resolveIdentity(distributionRoot, distribution);
+        if (listener != null) {
+            listener.identityResolved(distribution.getName(), distribution.getVersion());
+        }
+
+        final DistributionProcessor processor = new DistributionProcessor(hashing, seeds, artifacts, changedPaths, targets, distributionRoot);
+        processor.listener = listener;
+        final List<DirectoryScanner.Entry> children = processor.scanner.list(distributionRoot);
+        if (children != null) {
+            for (final DirectoryScanner.Entry child : children) {
                 processor.processMisc(parent, child, distribution);
             }
         }
+        processor.scanner.report(distributionRoot);
+    }
 
-        if (processor.moduleRoots.isEmpty()) {
+    /**
+     * Resolve the name and version of a distribution. The module path is determined from the layers configuration, so
+     * this does not depend on the scan.
+     *
+     * @param distributionRoot the distribution root
+     * @param distribution     the distribution
+     * @throws IOException
+     */
+    static void resolveIdentity(final File distributionRoot, final Distribution distribution) throws IOException {
+        final List<File> mp = getModuleRoots(new File(distributionRoot, MODULES));
+        if (mp.isEmpty()) {
             throw new IOException(distributionRoot.getAbsolutePath() + " is not a valid server distribution directory.");
         }
-        final List<File> mp = new ArrayList<File>();
-        final Set<DistributionContentItem> moduleRoots = processor.moduleRoots;
-        for (final DistributionContentItem item : moduleRoots) {
-            final File file = item.getFile(distributionRoot);
-            mp.add(file);
-        }
 
         // Update name and version
         final ModuleLoader loader = new LocalModuleLoader(mp.toArray(new File[mp.size()]));
@@ -107,40 +144,94 @@ class DistributionProcessor {
         }
     }
 
+    /**
+     * Get the module roots, the layers followed by the add-ons, in the same way as {@link #processLayeredRoot}.
+     *
+     * @param modulesDir the modules directory
+     * @return the module roots, empty if this is not a layered modules directory
+     */
+    static List<File> getModuleRoots(final File modulesDir) {
+        final List<File> roots = new ArrayList<File>();
+        final LayersConfig layersConfig = LayersConfig.getLayersConfig(modulesDir);
+        final File layersDir = new File(modulesDir, layersConfig.getLayersPath());
+        final List<String> layers = layersConfig.isConfigured() ? layersConfig.getLayers() : Collections.singletonList("base");
+        for (final String layer : layers) {
+            final File layerDir = new File(layersDir, layer);
+            if (!layerDir.isDirectory()) {
+                if (layersConfig.isConfigured()) {
+                    // Bad config from user
+                    throw processingError("Cannot find layer '%s' under directory %s", layer, layersDir);
+                }
+                return roots;
+            }
+            roots.add(layerDir);
+        }
+        final File[] addOns = new File(modulesDir, layersConfig.getAddOnsPath()).listFiles();
+        if (addOns != null) {
+            for (final File addOn : addOns) {
+                if (addOn.isDirectory()) {
+                    roots.add(addOn);
+                }
+            }
+        }
+        return roots;
+    }
+
     /**
      * Process the misc files.
      *
      * @param parent       the parent content item
-     * @param root         the current root
+     * @param entry        the current root
      * @param distribution the distribution
+     * @return the stats of the misc content processed, {@code null} if skipped
      * @throws IOException
      */
-    void processMisc(final DistributionContentItem parent, final File root, final Distribution distribution) throws IOException {
-        final DistributionContentItem item = new DistributionItemFileImpl(root, parent);
+    DirectoryScanner.ContentStats processMisc(final DistributionContentItem parent, final DirectoryScanner.Entry entry, final Distribution distribution) throws IOException {
+        final File root = entry.getFile();
+        final DistributionItemFileImpl item = new DistributionItemFileImpl(root, parent, entry.getAttributes());
         if (distribution.isIgnored(item)) {
             // Skip ignored ... Maybe only files?
-            return;
+            return null;
         } else if (distribution.isModuleLookupPath(item)) {
             // Process modules
             final LayeredContext lc = new LayeredModuleContext(distribution);
             processLayeredRoot(item, root, lc);
-            return;
+            return null;
         } else if (distribution.isBundleLookupPath(item)) {
             /// Process bundles
             final LayeredContext lc = new LayeredBundleContext(distribution);
             processLayeredRoot(item, root, lc);
-            return;
+            return null;
         }
 
+        // Skip misc content which cannot be part of the patch
+        if (targets != null && !targets.isTargeted(item.getPath('/'))) {
+            return null;
+        }
         // Build the misc file tree
         parent.getChildren().add(item);
+        final DirectoryScanner.ContentStats stats = new DirectoryScanner.ContentStats(entry);
+        if (item.isLeaf()) {
+            if (seeds != null) {
+                seed(item, seeds.getMiscHash(item));
+            }
+            if (artifacts != null) {
+                seed(item, artifacts.getHash(item.getPath('/'), root));
+            }
+            item.setContentStats(stats);
+            scheduleHash(item, root, stats);
+        }
         // Process the children
-        final File[] children = root.listFiles();
-        if (children != null && children.length != 0) {
-            for (final File child : children) {
-                processMisc(item, child, distribution);
+        if (entry.isDirectory()) {
+            final List<DirectoryScanner.Entry> children = scanner.list(root);
+            if (children != null) {
+                for (final DirectoryScanner.Entry child : children) {
+                    stats.add(processMisc(item, child, distribution));
+                }
             }
+            item.setContentStats(stats);
         }
+        return stats;
     }
 
     /**
@@ -156,7 +247,8 @@ class DistributionProcessor {
         // Process layers
         final File layersDir = new File(root, layersConfig.getLayersPath());
         final DistributionContentItem newParent = DistributionStructureImpl.createMiscItem(parent, layersConfig.getLayersPath());
-        if (!layersDir.exists()) {
+        final List<DirectoryScanner.Entry> layerEntries = scanner.list(layersDir);
+        if (layerEntries == null) {
             if (layersConfig.isConfigured()) {
                 // Bad config from user
                 throw processingError("No layers directory found at " + layersDir);
@@ -164,16 +256,17 @@ class DistributionProcessor {
             // else this isn't a root that has layers and add-ons
             return;
         }
+        final Map<String, DirectoryScanner.Entry> layerDirs = new HashMap<String, DirectoryScanner.Entry>();
+        for (final DirectoryScanner.Entry entry : layerEntries) {
+            if (entry.isDirectory()) {
+                layerDirs.put(entry.getName(), entry);
+            }
+        }
         // check for a valid layer configuration
         final List<String> layers;
         if (layersConfig.isConfigured()) {
             layers = layersConfig.getLayers();
-            if (layers.size() != layersDir.listFiles(new FileFilter() {
-                @Override
-                public boolean accept(File pathName) {
-                    return pathName.isDirectory();
-                }
-            }).length) {
+            if (layers.size() != layerDirs.size()) {
                 throw processingError("configured layers does not match actual ones %s", layers);
             }
         } else {
@@ -182,8 +275,8 @@ class DistributionProcessor {
         }
         //
         for (final String layer : layers) {
-            File layerDir = new File(layersDir, layer);
-            if (!layerDir.exists()) {
+            final DirectoryScanner.Entry layerDir = layerDirs.get(layer);
+            if (layerDir == null) {
                 if (layersConfig.isConfigured()) {
                     // Bad config from user
                     throw processingError("Cannot find layer '%s' under directory %s", layer, layersDir);
@@ -195,9 +288,9 @@ class DistributionProcessor {
         }
         // Finally process the add-ons
         final File addOnsDir = new File(root, layersConfig.getAddOnsPath());
-        final File[] addOnsList = addOnsDir.listFiles();
+        final List<DirectoryScanner.Entry> addOnsList = scanner.list(addOnsDir);
         if (addOnsList != null) {
-            for (final File addOn : addOnsList) {
+            for (final DirectoryScanner.Entry addOn : addOnsList) {
                 context.addAddOn(newParent, addOn.getName(), addOn);
             }
         }
@@ -207,56 +300,135 @@ class DistributionProcessor {
      * Try to find determine the modules.
      *
      * @param parent  the parent content item
-     * @param root    the current root
+     * @param entry   the current root
      * @param context the module context
+     * @return the stats of the content below the directory except the overlays, {@code null} if not a directory
      */
-    void processModules(final DistributionContentItem parent, final File root, final ModuleContext context) {
+    DirectoryScanner.ContentStats processModules(final DistributionContentItem parent, final DirectoryScanner.Entry entry, final ModuleContext context) {
 
-        final DistributionContentItem item = new DistributionItemFileImpl(root, parent);
-        final File moduleXml = new File(root, "module.xml");
-        if (moduleXml.exists()) {
-            // Only ignore actual modules
-            if (context.isIgnored(item)) {
-                return;
+        final File root = entry.getFile();
+        final List<DirectoryScanner.Entry> children = entry.isDirectory() ? scanner.list(root) : null;
+        if (children == null) {
+            return null;
+        }
+        final DistributionItemFileImpl item = new DistributionItemFileImpl(root, parent, entry.getAttributes());
+        final DirectoryScanner.ContentStats stats = new DirectoryScanner.ContentStats(entry);
+        boolean module = false;
+        for (final DirectoryScanner.Entry child : children) {
+            if (!child.isDirectory()) {
+                stats.add(child);
             }
-            context.addModule(item);
+            module |= MODULE_XML.equals(child.getName());
         }
-        final File[] children = root.listFiles(OVERLAYS_FILTER);
-        if (children != null && children.length != 0) {
-            for (final File child : children) {
-                processModules(item, child, context);
+        // Only ignore actual modules
+        final boolean ignored = module && context.isIgnored(item);
+        // The stats of a module include its subdirectories, which are listed anyway to look for nested modules
+        for (final DirectoryScanner.Entry child : children) {
+            if (!child.isDirectory()) {
+                continue;
+            } else if (ignored || OVERLAYS.equals(child.getName())) {
+                stats.skip();
+            } else {
+                stats.add(processModules(item, child, context));
             }
         }
+        if (ignored) {
+            return stats;
+        }
+        if (module) {
+            item.setContentStats(stats);
+            context.addModule(item);
+            scheduleHash(item, root, stats);
+        }
+        return stats;
     }
 
     /**
      * Try to determine the bundles.
      *
      * @param parent  the parent content item
-     * @param root    the current root
+     * @param entry   the current root
      * @param context the bundle context
      */
-    void processBundles(final DistributionContentItem parent, final File root, final ModuleContext context) {
-
-        final DistributionContentItem item = new DistributionItemFileImpl(root, parent);
-        final File[] children = root.listFiles(OVERLAYS_FILTER);
-        if (children != null && children.length != 0) {
-            for (final File child : children) {
-                if (!child.isDirectory()) {
-                    // Only ignore actual bundles
-                    if (context.isIgnored(item)) {
-                        return;
-                    }
-                    context.addModule(item);
-                    return;
-                }
+    void processBundles(final DistributionContentItem parent, final DirectoryScanner.Entry entry, final ModuleContext context) {
+
+        final File root = entry.getFile();
+        final List<DirectoryScanner.Entry> children = entry.isDirectory() ? scanner.list(root) : null;
+        if (children == null) {
+            return;
+        }
+        final DistributionItemFileImpl item = new DistributionItemFileImpl(root, parent, entry.getAttributes());
+        boolean bundle = false;
+        for (final DirectoryScanner.Entry child : children) {
+            if (!OVERLAYS.equals(child.getName())) {
+                bundle |= !child.isDirectory();
             }
-            for (final File child : children) {
+        }
+        if (bundle) {
+            // Only ignore actual bundles
+            if (context.isIgnored(item)) {
+                return;
+            }
+            final DirectoryScanner.ContentStats stats = new DirectoryScanner.ContentStats(entry);
+            addContentStats(children, stats);
+            item.setContentStats(stats);
+            context.addModule(item);
+            scheduleHash(item, root, stats);
+            return;
+        }
+        for (final DirectoryScanner.Entry child : children) {
+            if (!OVERLAYS.equals(child.getName())) {
                 processBundles(item, child, context);
             }
         }
     }
 
+    /**
+     * Add the stats of the listed files and directories and of the content below the directories, except the overlays.
+     *
+     * @param entries the listed files and directories
+     * @param stats   the stats to add to
+     */
+    private void addContentStats(final List<DirectoryScanner.Entry> entries, final DirectoryScanner.ContentStats stats) {
+        for (final DirectoryScanner.Entry entry : entries) {
+            if (OVERLAYS.equals(entry.getName())) {
+                stats.skip();
+            } else if (entry.isDirectory()) {
+                final DirectoryScanner.ContentStats directory = new DirectoryScanner.ContentStats(entry);
+                final List<DirectoryScanner.Entry> children = scanner.list(entry.getFile());
+                if (children != null) {
+                    addContentStats(children, directory);
+                } else {
+                    directory.skip();
+                }
+                stats.add(directory);
+            } else {
+                stats.add(entry);
+            }
+        }
+    }
+
+    private static void seed(final DistributionContentItem item, final byte[] hash) {
+        if (hash != null) {
+            ((DistributionItemFileImpl) item).setMetadataHash(hash);
+        }
+    }
+
+    private void scheduleHash(final DistributionItemFileImpl item, final File file, final DirectoryScanner.ContentStats stats) {
+        if (manifest != null && manifest.apply(item, DistributionManifest.getPath(distributionRoot, file))) {
+            // Unchanged since the build recorded its hashes
+            return;
+        }
+        if (changedPaths != null && !changedPaths.isListed(distributionRoot.toPath().relativize(file.toPath()).toString())) {
+            // Only hashed if needed for the comparison
+            item.setUnlistedIn(changedPaths);
+            return;
+        }
+        if (hashing != null) {
+            hashing.submit(item, file, stats);
+        }
+    }
+
     interface ProcessorContext {
 
         boolean isIgnored(final DistributionContentItem item);
@@ -271,9 +443,11 @@ class DistributionProcessor {
     abstract static class LayeredContext implements ProcessorContext {
 
         protected final Distribution distribution;
+        protected final DirectoryScanner scanner;
 
-        protected LayeredContext(Distribution distribution) {
+        protected LayeredContext(Distribution distribution, DirectoryScanner scanner) {
             this.distribution = distribution;
+            this.scanner = scanner;
         }
 
         @Override
@@ -281,60 +455,106 @@ class DistributionProcessor {
             return distribution.isIgnored(item);
         }
 
-        void addLayer(DistributionContentItem parent, String layer, File layerDir) {
+        void addLayer(DistributionContentItem parent, String layer, DirectoryScanner.Entry layerDir) {
             final Distribution.ProcessedLayer processedLayer = distribution.addLayer(layer);
-            final DistributionContentItem item = new DistributionItemFileImpl(layerDir, parent);
-            addModuleRoot(item);
-            doProcess(layerDir, processedLayer);
+            doProcess(layerDir.getFile(), processedLayer);
+            scanned(processedLayer);
         }
 
-        void addAddOn(DistributionContentItem parent, String name, File addOn) {
+        void addAddOn(DistributionContentItem parent, String name, DirectoryScanner.Entry addOn) {
             final Distribution.ProcessedLayer processedLayer = distribution.addAddOn(name);
-            final DistributionContentItem item = new DistributionItemFileImpl(addOn, parent);
-            addModuleRoot(item);
-            doProcess(addOn, processedLayer);
+            doProcess(addOn.getFile(), processedLayer);
+            scanned(processedLayer);
         }
 
-        void addModuleRoot(final DistributionContentItem item) {
-            //
-        }
+        /**
+         * Called once the modules or bundles of a layer or add-on were processed.
+         *
+         * @param processedLayer the processed layer
+         */
+        abstract void scanned(Distribution.ProcessedLayer processedLayer);
 
         void doProcess(final File layerDir, final Distribution.ProcessedLayer processedLayer) {
-            final File[] children = layerDir.listFiles();
-            if (children != null && children.length > 0) {
-                for (final File child : children) {
+            final Collection<String> targets = getTargets();
+            if (targets != null) {
+                // Only resolve the targeted modules, instead of walking the layer
+                for (final String target : targets) {
+                    final File dir = new File(layerDir, target);
+                    final DirectoryScanner.Entry entry = new DirectoryScanner.Entry(dir, scanner.readAttributes(dir));
+                    if (entry.isDirectory()) {
+                        process(createParents(layerDir, target), entry, processedLayer);
+                    }
+                }
+                return;
+            }
+            final List<DirectoryScanner.Entry> children = scanner.list(layerDir);
+            if (children != null) {
+                for (final DirectoryScanner.Entry child : children) {
                     // Skip the layer dir as parent... we only need the module name and layer
                     process(null, child, processedLayer);
                 }
             }
         }
 
+        /**
+         * Get the paths of the targeted modules or bundles.
+         *
+         * @return the paths relative to the layer, {@code null} to process all modules or bundles
+         */
+        Collection<String> getTargets() {
+            return null;
+        }
+
+        /**
+         * Create the content items of the module name, e.g. {@code org/jboss} for {@code org/jboss/as/main}.
+         */
+        private DistributionContentItem createParents(final File layerDir, final String target) {
+            final String[] segments = target.split("/");
+            DistributionContentItem parent = null;
+            File dir = layerDir;
+            for (int i = 0; i < segments.length - 1; i++) {
+                dir = new File(dir, segments[i]);
+                parent = new DistributionItemFileImpl(dir, parent, scanner.readAttributes(dir));
+            }
+            return parent;
+        }
+
         /**
          * Process either a bundle or module.
          *
          * @param parent         the parent content item
-         * @param layerDir       the layer dir
+         * @param entry          the directory in the layer
          * @param processedLayer the currently processed layer
          */
-        abstract void process(DistributionContentItem parent, File layerDir, Distribution.ProcessedLayer processedLayer);
+        abstract void process(DistributionContentItem parent, DirectoryScanner.Entry entry, Distribution.ProcessedLayer processedLayer);
 
     }
 
     class LayeredModuleContext extends LayeredContext {
 
         LayeredModuleContext(Distribution distribution) {
-            super(distribution);
+            super(distribution, DistributionProcessor.this.scanner);
         }
 
         @Override
-        void addModuleRoot(DistributionContentItem item) {
-            moduleRoots.add(item);
+        Collection<String> getTargets() {
+            return targets == null ? null : targets.getModulePaths();
         }
 
-        void process(DistributionContentItem parent, File layerDir, final Distribution.ProcessedLayer processedLayer) {
-            processModules(parent, layerDir, new ModuleContext() {
+        @Override
+        void scanned(final Distribution.ProcessedLayer processedLayer) {
+            if (listener != null) {
+                listener.layerScanned(processedLayer, false);
+            }
+        }
+
+        void process(DistributionContentItem parent, DirectoryScanner.Entry entry, final Distribution.ProcessedLayer processedLayer) {
+            processModules(parent, entry, new ModuleContext() {
                 @Override
                 public void addModule(DistributionContentItem module) {
+                    if (seeds != null) {
+                        seed(module, seeds.getModuleHash(ContentType.MODULE, processedLayer, module));
+                    }
                     processedLayer.addModule(module);
                 }
 
@@ -349,14 +569,29 @@ class DistributionProcessor {
     class LayeredBundleContext extends LayeredContext {
 
         LayeredBundleContext(Distribution distribution) {
-            super(distribution);
+            super(distribution, DistributionProcessor.this.scanner);
         }
 
         @Override
-        void process(final DistributionContentItem parent, final File layerDir, final Distribution.ProcessedLayer processedLayer) {
-            processBundles(parent, layerDir, new ModuleContext() {
+        Collection<String> getTargets() {
+            return targets == null ? null : targets.getBundlePaths();
+        }
+
+        @Override
+        void scanned(final Distribution.ProcessedLayer processedLayer) {
+            if (listener != null) {
+                listener.layerScanned(processedLayer, true);
+            }
+        }
+
+        @Override
+        void process(final DistributionContentItem parent, final DirectoryScanner.Entry entry, final Distribution.ProcessedLayer processedLayer) {
+            processBundles(parent, entry, new ModuleContext() {
                 @Override
                 public void addModule(DistributionContentItem module) {
+                    if (seeds != null) {
+                        seed(module, seeds.getModuleHash(ContentType.BUNDLE, processedLayer, module));
+                    }
                     processedLayer.addBundle(module);
                 }
 
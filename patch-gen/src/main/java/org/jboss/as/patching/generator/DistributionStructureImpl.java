@@ -56,6 +56,8 @@ class DistributionStructureImpl implements DistributionStructure {
         registerIgnoredPath("bin/product.conf");
         registerIgnoredPath("modules/layers.conf");
         registerIgnoredPath("bundles/layers.conf");
+        // Ignore the hashes recorded by the build
+        registerIgnoredPath(DistributionManifest.FILE_NAME + "*");
 
         // Ignore configuration and runtime locations
         registerIgnoredPath("appclient/configuration**");
@@ -111,8 +113,17 @@ class DistributionStructureImpl implements DistributionStructure {
 
     @Override
     public boolean isIgnored(final DistributionContentItem item) {
+        // Build the path only once for all the path filters
+        String path = null;
         for (final DistributionContentItem.Filter filter : ignored) {
-            if (filter.accept(item)) {
+            if (filter instanceof DistributionContentItem.GlobPathFilter) {
+                if (path == null) {
+                    path = item.getPath();
+                }
+                if (((DistributionContentItem.GlobPathFilter) filter).accept(path)) {
+                    return true;
+                }
+            } else if (filter.accept(item)) {
                 return true;
             }
         }
@@ -102,6 +102,7 @@ class DistributionXml {
             //
             final Distribution root = new Distribution();
             MAPPER.parseDocument(root, streamReader);
+            DistributionContentItem.freeze(root.getRoot());
             return root;
         } finally {
             safeClose(stream);
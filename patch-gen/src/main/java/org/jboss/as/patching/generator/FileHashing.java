@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.jboss.as.patching.HashUtils;
+
+/**
+ * Computes the same hashes as {@link HashUtils#hashFile(File)}, the SHA1 of the content of a file, or of the content of
+ * all files below a directory in name order, without serializing all callers on a single digest. Files are read
+ * through a reused buffer.
+ */
+class FileHashing {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = DigestUtils.newThreadLocalDigest("SHA1");
+
+    private FileHashing() {
+        //
+    }
+
+    /**
+     * Hash a file or directory.
+     *
+     * @param file the file or directory
+     * @return the hash
+     * @throws IOException
+     */
+    static byte[] hashFile(final File file) throws IOException {
+        final MessageDigest digest = DigestUtils.getDigest(DIGEST);
+        updateDigest(digest, file);
+        return digest.digest();
+    }
+
+    static void updateDigest(final MessageDigest digest, final File file) throws IOException {
+        if (file.isDirectory()) {
+            final File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (final File child : children) {
+                    updateDigest(digest, child);
+                }
+            }
+        } else {
+            read(digest, file);
+        }
+    }
+
+    static void read(final MessageDigest digest, final File file) throws IOException {
+        final byte[] buffer = DigestUtils.getBuffer();
+        final InputStream is = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+}
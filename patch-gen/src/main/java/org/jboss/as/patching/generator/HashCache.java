@@ -0,0 +1,172 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares hash computations between identical content of the distributions.
+ * <p/>
+ * Items are identified by their file signature: the file key (device and inode), size and modification time of the
+ * file, or of all files of a directory, as recorded by the scan. Content hard linked between the distributions, e.g. using
+ * {@code rsync --link-dest}, is only hashed once, with both items getting the same hashes. The entry hashes of the
+ * jars of modules compared with {@code --detailed-inspection} are additionally indexed by size and a fast hash of the
+ * jar, so that copies of the same jar in different modules are only inflated once.
+ * <p/>
+ * Enabled by default, can be disabled using the {@code patch.gen.hash.dedup} system property. Nothing is shared on
+ * file systems not providing file keys.
+ */
+class HashCache {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("patch.gen.hash.dedup", "true"));
+
+    private final ConcurrentMap<Object, FutureTask<byte[][]>> items = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Object, FutureTask<byte[]>> jars = new ConcurrentHashMap<>();
+
+    static HashCache create() {
+        return ENABLED ? new HashCache() : null;
+    }
+
+    /**
+     * Get the metadata and comparison hashes of an item, computing them using the item unless an item with the same
+     * signature was hashed before.
+     *
+     * @param item the content item
+     * @return the metadata and the comparison hash
+     * @throws IOException
+     */
+    byte[][] getHashes(final DistributionItemFileImpl item) throws IOException {
+        final Object signature = item.getContentSignature();
+        if (signature == null) {
+            return item.calculateHashes();
+        }
+        return get(items, Arrays.asList(item.getName(), signature), new Callable<byte[][]>() {
+            @Override
+            public byte[][] call() throws Exception {
+                return item.calculateHashes();
+            }
+        });
+    }
+
+    /**
+     * Get the entry hashes of a jar, see {@link JarDiffUtils#getEntryHashes(File, boolean)}.
+     *
+     * @param file      the jar
+     * @param strong    whether to hash the entries using SHA1 rather than the configured comparison digest
+     * @param signature the signature of the jar as scanned, {@code null} if unknown
+     * @return the entry hashes
+     * @throws IOException
+     */
+    byte[] getEntryHashes(final File file, final boolean strong, final DirectoryScanner.FileSignature signature) throws IOException {
+        final Callable<byte[]> task = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return JarDiffUtils.getEntryHashes(file, strong);
+            }
+        };
+        if (signature != null) {
+            final FutureTask<byte[]> known = jars.get(Arrays.asList(strong, signature));
+            if (known != null) {
+                return ConcurrencyUtils.join(known);
+            }
+        }
+        // Identify the content by size and a fast hash, which is much cheaper than inflating the entries
+        final MessageDigest digest = new ComparisonDigest.XXHash64Digest();
+        FileHashing.updateDigest(digest, file);
+        final long size = signature != null ? signature.getSize() : file.length();
+        final Object content = Arrays.asList(strong, size, new Key(digest.digest()));
+        final FutureTask<byte[]> future = getFuture(jars, content, task);
+        if (signature != null) {
+            jars.putIfAbsent(Arrays.asList(strong, signature), future);
+        }
+        return ConcurrencyUtils.join(future);
+    }
+
+    /**
+     * Get the signature of a file within a directory.
+     *
+     * @param signature the signature of the directory, see {@link DirectoryScanner.ContentStats#getSignature()}
+     * @param path      the path of the file relative to the directory
+     * @return the signature of the file, {@code null} if unknown
+     */
+    static DirectoryScanner.FileSignature getSignature(final Object signature, final String path) {
+        Object current = signature;
+        for (final String name : path.split("/")) {
+            if (!(current instanceof Map)) {
+                return null;
+            }
+            current = ((Map<?, ?>) current).get(name);
+        }
+        return current instanceof DirectoryScanner.FileSignature ? (DirectoryScanner.FileSignature) current : null;
+    }
+
+    private static <T> T get(final ConcurrentMap<Object, FutureTask<T>> map, final Object key, final Callable<T> task) throws IOException {
+        return ConcurrencyUtils.join(getFuture(map, key, task));
+    }
+
+    /**
+     * Get the computation of a key, running it on this thread if it was not started yet. Concurrent requests for the
+     * same key wait for the first one.
+     */
+    private static <T> FutureTask<T> getFuture(final ConcurrentMap<Object, FutureTask<T>> map, final Object key, final Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<>(task);
+        final FutureTask<T> existing = map.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        future.run();
+        return future;
+    }
+
+    /**
+     * A hash usable as a map key.
+     */
+    static final class Key {
+
+        private final byte[] hash;
+
+        Key(final byte[] hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Key && Arrays.equals(hash, ((Key) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(hash);
+        }
+    }
+
+}
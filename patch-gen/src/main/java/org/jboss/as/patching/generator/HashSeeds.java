@@ -0,0 +1,184 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jboss.as.patching.IoUtils;
+import org.jboss.as.patching.metadata.ContentItem;
+import org.jboss.as.patching.metadata.ContentModification;
+import org.jboss.as.patching.metadata.ContentType;
+import org.jboss.as.patching.metadata.MiscContentItem;
+import org.jboss.as.patching.metadata.ModificationType;
+import org.jboss.as.patching.metadata.ModuleItem;
+import org.jboss.as.patching.metadata.Patch;
+import org.jboss.as.patching.metadata.PatchElement;
+import org.jboss.as.patching.metadata.PatchElementProvider;
+import org.jboss.as.patching.metadata.PatchXml;
+
+/**
+ * The metadata hashes of the base distribution known from the patches which produced it. Each patch.xml records the
+ * resulting hash of every module, bundle and misc file it added or modified, so for a base distribution which is the
+ * result of applying a known chain of patches these items do not need to be hashed.
+ * <p/>
+ * The patches are applied in order, a later patch overriding or removing the hashes recorded by an earlier one. The
+ * patch.xml does not record the size or modification time of the content, only the type of a seeded item is checked.
+ * A base distribution which does not match the chain produces a patch whose expected hashes fail to validate when it
+ * is applied.
+ */
+class HashSeeds {
+
+    private final Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+
+    /**
+     * Load the hashes from patches, either patch zips or patch.xml files.
+     *
+     * @param files the patches, in the order they were applied
+     * @return the hashes
+     * @throws IOException
+     */
+    static HashSeeds load(final List<File> files) throws IOException {
+        final HashSeeds seeds = new HashSeeds();
+        for (final File file : files) {
+            seeds.add(parse(file));
+        }
+        return seeds;
+    }
+
+    void add(final Patch patch) {
+        for (final ContentModification modification : patch.getModifications()) {
+            add(null, modification);
+        }
+        for (final PatchElement element : patch.getElements()) {
+            for (final ContentModification modification : element.getModifications()) {
+                add(element.getProvider(), modification);
+            }
+        }
+    }
+
+    private void add(final PatchElementProvider provider, final ContentModification modification) {
+        final ContentItem item = modification.getItem();
+        final String key;
+        if (item.getContentType() == ContentType.MISC) {
+            final MiscContentItem misc = (MiscContentItem) item;
+            if (misc.isDirectory()) {
+                return;
+            }
+            final List<String> path = new ArrayList<String>(Arrays.asList(misc.getPath()));
+            path.add(misc.getName());
+            key = getMiscKey(path);
+        } else if (provider != null) {
+            // bundle items are module items as well
+            final String slot = ((ModuleItem) item).getSlot();
+            key = getModuleKey(item.getContentType(), provider.isAddOn(), provider.getName(), item.getName(), slot);
+        } else {
+            return;
+        }
+        if (modification.getType() == ModificationType.REMOVE) {
+            hashes.remove(key);
+        } else {
+            hashes.put(key, item.getContentHash());
+        }
+    }
+
+    int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Get the hash of a misc file.
+     *
+     * @param item the content item
+     * @return the hash, {@code null} if unknown
+     */
+    byte[] getMiscHash(final DistributionContentItem item) {
+        return hashes.get(getMiscKey(item.getPathAsList()));
+    }
+
+    /**
+     * Get the hash of a module or bundle.
+     *
+     * @param type  the content type
+     * @param layer the layer or add-on
+     * @param item  the module content item
+     * @return the hash, {@code null} if unknown
+     */
+    byte[] getModuleHash(final ContentType type, final Distribution.ProcessedLayer layer, final DistributionContentItem item) {
+        return hashes.get(getModuleKey(type, layer.isAddOn(), layer.getName(), item.getParent().getPath('.'), item.getName()));
+    }
+
+    private static String getMiscKey(final List<String> path) {
+        final StringBuilder builder = new StringBuilder("misc:");
+        for (int i = 0; i < path.size(); i++) {
+            if (i > 0) {
+                builder.append('/');
+            }
+            builder.append(path.get(i));
+        }
+        return builder.toString();
+    }
+
+    private static String getModuleKey(final ContentType type, final boolean addOn, final String layer, final String name, final String slot) {
+        return type.name() + ':' + (addOn ? "add-on:" : "layer:") + layer + ':' + name + ':' + slot;
+    }
+
+    private static Patch parse(final File file) throws IOException {
+        try {
+            if (file.getName().endsWith(".xml")) {
+                return PatchXml.parse(file).resolvePatch(null, null);
+            }
+            final ZipFile zip = new ZipFile(file);
+            try {
+                final ZipEntry entry = zip.getEntry(PatchXml.PATCH_XML);
+                if (entry == null) {
+                    throw processingError("%s not found in %s", PatchXml.PATCH_XML, file);
+                }
+                final InputStream is = zip.getInputStream(entry);
+                try {
+                    return PatchXml.parse(is).resolvePatch(null, null);
+                } finally {
+                    IoUtils.safeClose(is);
+                }
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw processingError(e, "failed to read the hashes of %s", file);
+        }
+    }
+
+}
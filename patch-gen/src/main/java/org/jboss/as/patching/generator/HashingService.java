@@ -0,0 +1,188 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the hashes of scanned content items on a bounded pool of workers, while the distribution is still being
+ * processed.
+ * <p/>
+ * Jobs are ordered largest first, so that a huge jar found at the end of the walk does not dominate the total time,
+ * or optionally by inode to reduce seeks on spinning and network disks. The number of queued jobs is bounded, the
+ * scanner blocks until a worker is available. Results are published into the content items, and a consumer that needs
+ * a hash which has not been picked up by a worker yet computes it on its own thread instead of waiting.
+ * <p/>
+ * The service is shared by the concurrent scans of all distributions, and so is its I/O budget: hashing a file and
+ * listing a directory each take a permit, so the scans and the workers do not thrash the same disk.
+ * <p/>
+ * Configured using the {@code patch.gen.hash.threads}, {@code patch.gen.hash.queue.depth},
+ * {@code patch.gen.hash.order} ({@code size} or {@code locality}) and {@code patch.gen.io.permits} system properties.
+ */
+class HashingService {
+
+    enum Order {
+        SIZE,
+        LOCALITY,
+    }
+
+    static final int DEFAULT_QUEUE_DEPTH = 4096;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore queueDepth;
+    private final Semaphore ioPermits;
+    private final Order order;
+    private final AtomicLong sequence = new AtomicLong();
+    private final HashCache cache = HashCache.create();
+
+    HashingService(final int threads, final int queueDepth, final Order order, final int ioPermits) {
+        final int poolSize = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ConcurrencyUtils.DaemonThreadFactory("patch-gen-hash"));
+        this.queueDepth = new Semaphore(Math.max(1, queueDepth));
+        // Fair, a scan waiting for a listing is not overtaken by the workers
+        this.ioPermits = new Semaphore(Math.max(1, ioPermits), true);
+        this.order = order;
+    }
+
+    /**
+     * Create the hashing service based on the system properties.
+     *
+     * @return the hashing service
+     */
+    static HashingService create() {
+        final int threads = Integer.getInteger("patch.gen.hash.threads", ConcurrencyUtils.DEFAULT_THREADS);
+        final int queueDepth = Integer.getInteger("patch.gen.hash.queue.depth", DEFAULT_QUEUE_DEPTH);
+        final String order = System.getProperty("patch.gen.hash.order", Order.SIZE.name());
+        final int ioPermits = Integer.getInteger("patch.gen.io.permits", Math.max(2, threads));
+        return new HashingService(threads, queueDepth, Order.valueOf(order.toUpperCase()), ioPermits);
+    }
+
+    /**
+     * Get the I/O budget, bounding the number of files hashed and directories listed at the same time.
+     *
+     * @return the permits
+     */
+    Semaphore getIoPermits() {
+        return ioPermits;
+    }
+
+    /**
+     * Schedule the hashing of a content item, ordered by the size or file key recorded by the scan.
+     *
+     * @param item  the item
+     * @param file  the file or directory backing the item
+     * @param stats the stats of the content as scanned
+     */
+    void submit(final DistributionItemFileImpl item, final File file, final DirectoryScanner.ContentStats stats) {
+        try {
+            queueDepth.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw processingError(e, "interrupted while scheduling hash for %s", file);
+        }
+        final long key = order == Order.LOCALITY ? getInode(stats.getFileKey()) : -stats.getSize();
+        final HashJob job = new HashJob(item, key, sequence.incrementAndGet());
+        item.setHashCache(cache, stats.getSignature());
+        item.setPendingHash(job);
+        try {
+            executor.execute(job);
+        } catch (RuntimeException e) {
+            queueDepth.release();
+            throw e;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the inode from a file key, which only exposes it through its string form, e.g. {@code (dev=803,ino=1234)}
+     * on unix.
+     *
+     * @param fileKey the file key, may be {@code null}
+     * @return the inode, {@code 0} if unknown
+     */
+    static long getInode(final Object fileKey) {
+        if (fileKey == null) {
+            return 0L;
+        }
+        final String key = fileKey.toString();
+        final int start = key.indexOf("ino=");
+        if (start == -1) {
+            return 0L;
+        }
+        int end = start + "ino=".length();
+        long inode = 0L;
+        while (end < key.length() && Character.isDigit(key.charAt(end))) {
+            inode = inode * 10 + (key.charAt(end++) - '0');
+        }
+        return inode;
+    }
+
+    class HashJob extends FutureTask<Void> implements Comparable<HashJob> {
+
+        private final long key;
+        private final long sequence;
+
+        HashJob(final DistributionItemFileImpl item, final long key, final long sequence) {
+            super(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final Semaphore ioPermits = HashingService.this.ioPermits;
+                    ioPermits.acquire();
+                    try {
+                        item.computeHashes();
+                    } finally {
+                        ioPermits.release();
+                    }
+                    return null;
+                }
+            });
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        protected void done() {
+            queueDepth.release();
+        }
+
+        @Override
+        public int compareTo(HashJob o) {
+            final int result = Long.compare(key, o.key);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+
+}
@@ -4,17 +4,26 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * @author Emanuel Muckenhuber
@@ -22,6 +31,20 @@ import java.util.jar.Manifest;
 class JarDiffUtils {
 
     private static final boolean USE_METADATA_HASH = Boolean.getBoolean("patch.gen.use.metadata.hash");
+    // Compare jar entries by CRC-32 and size from the central directory, instead of hashing their content
+    private static final boolean USE_CRC = Boolean.getBoolean("patch.gen.jar.crc");
+    // Jars of at least this size have their entries hashed concurrently
+    private static final long PARALLEL_THRESHOLD = Long.getLong("patch.gen.jar.parallel.threshold", 32L * 1024 * 1024);
+    // The amount of compressed content hashed by a single task
+    private static final long PARALLEL_BATCH_SIZE = 1024 * 1024;
+
+    private static final int SHA1_LENGTH = 20;
+    private static final ThreadLocal<EntryTable> ENTRY_TABLE = new ThreadLocal<EntryTable>() {
+        @Override
+        protected EntryTable initialValue() {
+            return new EntryTable();
+        }
+    };
 
     // Ignored manifest attributes
     private static final Set<String> ignoredManifestAttributes = new HashSet<>();
@@ -55,25 +78,54 @@ class JarDiffUtils {
      * @throws IOException
      */
     public static byte[] calculateHash(final File root, final DistributionContentItem item) throws NoSuchAlgorithmException, IOException {
+        return calculateHash(root, item, false, null);
+    }
+
+    /**
+     * Calculate a hash for a file, using either the configured comparison digest or SHA1.
+     *
+     * @param root   the file system path
+     * @param item   the content item
+     * @param strong whether to use SHA1 rather than the configured comparison digest
+     * @param cache  the hashes shared with identical content, may be {@code null}
+     * @return the hash for the path
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    static byte[] calculateHash(final File root, final DistributionContentItem item, final boolean strong, final HashCache cache) throws NoSuchAlgorithmException, IOException {
         if (USE_METADATA_HASH) {
             return item.getMetadataHash();
         } else {
 
             final File moduleXml = new File(root, "module.xml");
             if (moduleXml.exists()) {
-                return ModuleDiffUtils.processModule(root, item.getParent().getPath('.'), item.getMetadataHash());
+                final Object signature = item instanceof DistributionItemFileImpl ? ((DistributionItemFileImpl) item).getContentSignature() : null;
+                return ModuleDiffUtils.processModule(root, item.getParent().getPath('.'), item.getMetadataHash(), strong, cache, signature);
             } else if (root.getName().equals(".jar")) {
-                return internalJarComparison(root);
+                return internalJarComparison(root, strong);
             } else {
                 return item.getMetadataHash();
             }
         }
     }
 
+    /**
+     * Describe the settings the comparison hashes depend on, hashes calculated using different settings cannot be compared.
+     *
+     * @return the settings
+     */
+    static String getComparisonSettings() {
+        return ComparisonDigest.ALGORITHM + ",detailed-inspection=" + ModuleDiffUtils.deepInspection + ",jar-crc=" + USE_CRC
+                + ",metadata-hash=" + USE_METADATA_HASH;
+    }
+
     public static byte[] internalJarComparison(final File file) throws NoSuchAlgorithmException, IOException {
-        // TODO: make the algorithm choice configurable
-        final MessageDigest jarDigest = MessageDigest.getInstance("SHA1");
-        internalJarComparison(file, jarDigest, true);
+        return internalJarComparison(file, false);
+    }
+
+    static byte[] internalJarComparison(final File file, final boolean strong) throws NoSuchAlgorithmException, IOException {
+        final MessageDigest jarDigest = ComparisonDigest.get(strong).getJarDigest();
+        internalJarComparison(file, jarDigest, strong, true);
         return jarDigest.digest();
     }
 
@@ -86,8 +138,64 @@ class JarDiffUtils {
      * @throws IOException
      */
     public static void internalJarComparison(final File file, final MessageDigest jarDigest, boolean debug) throws NoSuchAlgorithmException, IOException {
-        final TreeSet<Entry> entries = new TreeSet<>();
-        final MessageDigest digest = MessageDigest.getInstance("SHA1");
+        internalJarComparison(file, jarDigest, false, debug);
+    }
+
+    /**
+     * Internally compare a .jar file, trying to ignore things that usually change through a rebuild.
+     *
+     * @param file      the jar file
+     * @param jarDigest the message jar message digest
+     * @param strong    whether to hash the entries using SHA1 rather than the configured comparison digest
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    static void internalJarComparison(final File file, final MessageDigest jarDigest, final boolean strong, boolean debug) throws NoSuchAlgorithmException, IOException {
+        final EntryTable entries = ENTRY_TABLE.get();
+        entries.reset();
+        try {
+            hashEntries(file, entries, strong);
+            // Add the hashes to the jarDigest
+            entries.update(jarDigest);
+        } finally {
+            entries.reset();
+        }
+    }
+
+    /**
+     * Get the hashes of the entries of a .jar file ordered by name, the way they are added to the jar digest. Updating
+     * a digest with the result is the same as {@link #internalJarComparison(File, MessageDigest, boolean, boolean)}.
+     *
+     * @param file   the jar file
+     * @param strong whether to hash the entries using SHA1 rather than the configured comparison digest
+     * @return the concatenated entry hashes
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    static byte[] getEntryHashes(final File file, final boolean strong) throws NoSuchAlgorithmException, IOException {
+        final EntryTable entries = ENTRY_TABLE.get();
+        entries.reset();
+        try {
+            hashEntries(file, entries, strong);
+            return entries.toByteArray();
+        } finally {
+            entries.reset();
+        }
+    }
+
+    private static void hashEntries(final File file, final EntryTable entries, final boolean strong) throws NoSuchAlgorithmException, IOException {
+        if (USE_CRC) {
+            crcJarComparison(file, entries, strong);
+        } else if (ConcurrencyUtils.DEFAULT_THREADS > 1 && file.length() >= PARALLEL_THRESHOLD) {
+            parallelJarComparison(file, entries, strong);
+        } else {
+            sequentialJarComparison(file, entries, strong);
+        }
+    }
+
+    static void sequentialJarComparison(final File file, final EntryTable entries, final boolean strong) throws NoSuchAlgorithmException, IOException {
+        final MessageDigest digest = ComparisonDigest.get(strong).getEntryDigest();
+        final byte[] buf = DigestUtils.getBuffer();
         final JarInputStream in = new JarInputStream(new BufferedInputStream(new FileInputStream(file)));
         try {
             JarEntry entry;
@@ -97,106 +205,401 @@ class JarDiffUtils {
                     continue;
                 }
                 final String name = entry.getName();
-                // do not hash information added by jarsigner
-                if (name.startsWith("META-INF/")) {
-                    if (name.endsWith(".SF") || name.endsWith(".DSA"))
-                        continue;
-                }
-                if (name.equals("META-INF/INDEX.LIST")) {
+                if (isIgnored(name)) {
                     continue;
                 }
-                // do not hash timestamped maven artifacts
-                // TODO: make this optional, enabled by default
-                if (name.startsWith("META-INF/maven/")) {
-                    if (name.endsWith("/pom.properties")
-                            || name.endsWith("/pom.xml")
-                            || name.endsWith("/effective-pom.xml")) {
-                        continue;
-                    }
-                }
-                // Ignore generated logger and bundle, since the created classes are not consistent
-                if (name.endsWith(".class")) {
-                    if (name.endsWith("_$bundle.class") || name.endsWith("_$logger.class")
-                            || name.contains("_$bundle_") || name.contains("_$logger_")) {
-                        continue;
-                    }
-                }
 
-                digest.reset();
-                final byte[] buf = new byte[4096];
                 int l;
                 while ((l = in.read(buf)) > 0) {
                     digest.update(buf, 0, l);
                 }
-                final byte[] d = digest.digest();
-                // Add to ordered set
-                entries.add(new Entry(name, d));
+                // Add to the table, which is ordered later
+                entries.add(name, digest);
             }
         } finally {
             in.close();
         }
 
         // Process the manifest if there is any
-        final Manifest manifest =  in.getManifest();
+        final Manifest manifest = in.getManifest();
         if (manifest != null) {
-            digest.reset();
-            final Attributes attributes = manifest.getMainAttributes();
-            for (final Map.Entry<Object, Object> entry : attributes.entrySet()) {
-                final String name = entry.getKey().toString();
-                // Ignore attributes that change with every rebuild
-                if (! ignoredManifestAttributes.contains(name)) {
-                    final String value = (String) entry.getValue();
-                    digest.update(name.getBytes());
-                    digest.update(value.getBytes());
+            hashManifest(manifest, digest);
+            entries.add(JarFile.MANIFEST_NAME, digest);
+        }
+    }
+
+    /**
+     * Compare a large .jar file, inflating and hashing batches of entries concurrently. The entries and the manifest
+     * are selected the same way {@link JarInputStream} does, so the resulting hash is the same as the sequential one.
+     *
+     * @param file    the jar file
+     * @param entries the table receiving the entry hashes
+     * @param strong  whether to hash the entries using SHA1 rather than the configured comparison digest
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    static void parallelJarComparison(final File file, final EntryTable entries, final boolean strong) throws NoSuchAlgorithmException, IOException {
+        parallelJarComparison(file, entries, strong, PARALLEL_BATCH_SIZE);
+    }
+
+    /**
+     * Compare a large .jar file concurrently, see {@link #parallelJarComparison(File, EntryTable, boolean)}.
+     *
+     * @param file       the jar file
+     * @param entries    the table receiving the entry hashes
+     * @param strong     whether to hash the entries using SHA1 rather than the configured comparison digest
+     * @param batchLimit the compressed size of the entries hashed by one task
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    static void parallelJarComparison(final File file, final EntryTable entries, final boolean strong, final long batchLimit) throws NoSuchAlgorithmException, IOException {
+        final ZipFile zip = new ZipFile(file);
+        try {
+            Manifest manifest = null;
+            final List<EntryHashing> tasks = new ArrayList<>();
+            List<ZipEntry> batch = new ArrayList<>();
+            long batchSize = 0;
+            boolean first = true;
+            boolean manifestCandidate = true;
+            final Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                final ZipEntry entry = e.nextElement();
+                final String name = entry.getName();
+                // JarInputStream only picks up the manifest from the start of the jar
+                if (manifestCandidate) {
+                    if (first && name.equalsIgnoreCase("META-INF/")) {
+                        first = false;
+                        continue;
+                    }
+                    manifestCandidate = false;
+                    if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                        final InputStream is = zip.getInputStream(entry);
+                        try {
+                            manifest = new Manifest(is);
+                        } finally {
+                            is.close();
+                        }
+                        continue;
+                    }
+                }
+                // do not hash directories
+                if (entry.isDirectory() || isIgnored(name)) {
+                    continue;
+                }
+                batch.add(entry);
+                batchSize += Math.max(0, entry.getCompressedSize());
+                if (batchSize >= batchLimit) {
+                    tasks.add(new EntryHashing(zip, batch, strong));
+                    batch = new ArrayList<>();
+                    batchSize = 0;
                 }
             }
-            // Add the manifest
-            entries.add(new Entry(JarFile.MANIFEST_NAME, digest.digest()));
+            if (!batch.isEmpty()) {
+                tasks.add(new EntryHashing(zip, batch, strong));
+            }
+            // Add to the table in the order of the jar, the first of duplicate entries wins
+            final List<byte[]> results = ConcurrencyUtils.invokeAll(ParallelHashing.EXECUTOR, tasks);
+            final MessageDigest digest = ComparisonDigest.get(strong).getEntryDigest();
+            final int length = digest.getDigestLength();
+            for (int i = 0; i < tasks.size(); i++) {
+                final List<ZipEntry> hashed = tasks.get(i).entries;
+                final byte[] hashes = results.get(i);
+                for (int j = 0; j < hashed.size(); j++) {
+                    entries.add(hashed.get(j).getName(), hashes, j * length, length);
+                }
+            }
+            // Process the manifest if there is any
+            if (manifest != null) {
+                hashManifest(manifest, digest);
+                entries.add(JarFile.MANIFEST_NAME, digest);
+            }
+        } finally {
+            zip.close();
         }
-        // Add the hashes to the jarDigest
-        for (final Entry entry : entries) {
-            final byte[] hash = entry.getHash();
-            if (hash != null) {
-                jarDigest.update(hash);
+    }
+
+    /**
+     * Compare a .jar file based on its central directory. The CRC-32 and the size of an entry stand in for the hash of
+     * its content, only the manifest is inflated to filter its attributes. Two jars with entries of the same name, size
+     * and CRC are considered equal, so that comparing a rebuilt but unchanged jar only reads a few KB.
+     *
+     * @param file    the jar file
+     * @param entries the table receiving the entry hashes
+     * @param strong  whether to hash the manifest using SHA1 rather than the configured comparison digest
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    static void crcJarComparison(final File file, final EntryTable entries, final boolean strong) throws NoSuchAlgorithmException, IOException {
+        final JarFile jar = new JarFile(file, false);
+        try {
+            final Enumeration<JarEntry> e = jar.entries();
+            while (e.hasMoreElements()) {
+                final JarEntry entry = e.nextElement();
+                final String name = entry.getName();
+                if (entry.isDirectory() || isIgnored(name) || name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    continue;
+                }
+                final long crc = entry.getCrc();
+                final long size = entry.getSize();
+                final byte[] hashes = entries.add(name, 12);
+                final int offset = entries.getOffset(entries.size() - 1);
+                for (int i = 0; i < 4; i++) {
+                    hashes[offset + i] = (byte) (crc >>> (24 - 8 * i));
+                }
+                for (int i = 0; i < 8; i++) {
+                    hashes[offset + 4 + i] = (byte) (size >>> (56 - 8 * i));
+                }
             }
+            // Process the manifest if there is any
+            final Manifest manifest = jar.getManifest();
+            if (manifest != null) {
+                final MessageDigest digest = ComparisonDigest.get(strong).getEntryDigest();
+                hashManifest(manifest, digest);
+                entries.add(JarFile.MANIFEST_NAME, digest);
+            }
+        } finally {
+            jar.close();
         }
     }
 
-    static class Entry implements Comparable<Entry> {
+    /**
+     * Whether a jar entry is ignored for the comparison.
+     *
+     * @param name the entry name
+     * @return {@code true} if the entry is ignored
+     */
+    static boolean isIgnored(final String name) {
+        // do not hash information added by jarsigner
+        if (name.startsWith("META-INF/")) {
+            if (name.endsWith(".SF") || name.endsWith(".DSA"))
+                return true;
+        }
+        if (name.equals("META-INF/INDEX.LIST")) {
+            return true;
+        }
+        // do not hash timestamped maven artifacts
+        // TODO: make this optional, enabled by default
+        if (name.startsWith("META-INF/maven/")) {
+            if (name.endsWith("/pom.properties")
+                    || name.endsWith("/pom.xml")
+                    || name.endsWith("/effective-pom.xml")) {
+                return true;
+            }
+        }
+        // Ignore generated logger and bundle, since the created classes are not consistent
+        if (name.endsWith(".class")) {
+            if (name.endsWith("_$bundle.class") || name.endsWith("_$logger.class")
+                    || name.contains("_$bundle_") || name.contains("_$logger_")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Update the digest with the manifest attributes which do not change with every rebuild.
+     *
+     * @param manifest the manifest
+     * @param digest   the digest
+     */
+    static void hashManifest(final Manifest manifest, final MessageDigest digest) {
+        final Attributes attributes = manifest.getMainAttributes();
+        for (final Map.Entry<Object, Object> entry : attributes.entrySet()) {
+            final String name = entry.getKey().toString();
+            // Ignore attributes that change with every rebuild
+            if (! ignoredManifestAttributes.contains(name)) {
+                final String value = (String) entry.getValue();
+                DigestUtils.update(digest, name);
+                DigestUtils.update(digest, value);
+            }
+        }
+    }
 
-        final String name;
-        final byte[] hash;
+    /**
+     * Hashes a batch of entries of a jar, returning the concatenated hashes.
+     */
+    static class EntryHashing implements Callable<byte[]> {
+
+        private final ZipFile zip;
+        private final List<ZipEntry> entries;
+        private final boolean strong;
 
-        Entry(String name, byte[] hash) {
-            this.name = name;
-            this.hash = hash;
+        EntryHashing(ZipFile zip, List<ZipEntry> entries, boolean strong) {
+            this.zip = zip;
+            this.entries = entries;
+            this.strong = strong;
         }
 
-        String getName() {
-            return name;
+        @Override
+        public byte[] call() throws Exception {
+            final MessageDigest digest = ComparisonDigest.get(strong).getEntryDigest();
+            final int length = digest.getDigestLength();
+            final byte[] result = new byte[entries.size() * length];
+            final byte[] buf = DigestUtils.getBuffer();
+            for (int i = 0; i < entries.size(); i++) {
+                final InputStream in = zip.getInputStream(entries.get(i));
+                try {
+                    int l;
+                    while ((l = in.read(buf)) > 0) {
+                        digest.update(buf, 0, l);
+                    }
+                } finally {
+                    in.close();
+                }
+                digest.digest(result, i * length, length);
+            }
+            return result;
         }
+    }
+
+    /**
+     * The workers hashing the entries of large jars. Separate from the workers hashing the distribution content, which
+     * wait for these.
+     */
+    private static class ParallelHashing {
+
+        static final ExecutorService EXECUTOR = ConcurrencyUtils.newFixedThreadPool("patch-gen-jar", ConcurrencyUtils.DEFAULT_THREADS);
+
+    }
+
+    /**
+     * The hashes of the entries of a jar, ordered by name before they are added to the jar digest. Names and hashes are
+     * kept in flat arrays which are reused for the next jar, instead of an object per entry in a sorted set. Like for
+     * a {@link java.util.TreeSet} only the first entry of a name is used.
+     */
+    static final class EntryTable {
+
+        private String[] names = new String[256];
+        private int[] offsets = new int[257];
+        private byte[] hashes = new byte[256 * SHA1_LENGTH];
+        private int[] order = new int[256];
+        private int[] scratch = new int[256];
+        private int size;
 
-        byte[] getHash() {
-            return hash;
+        int size() {
+            return size;
         }
 
-        @Override
-        public int compareTo(Entry o) {
-            return name.compareTo(o.name);
+        int getOffset(final int index) {
+            return offsets[index];
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            final Entry entry = (Entry) o;
-            if (!name.equals(entry.name)) return false;
-            return true;
+        /**
+         * Add an entry, the hash is written to the returned array at {@link #getOffset(int)} by the caller.
+         *
+         * @param name   the entry name
+         * @param length the length of the hash
+         * @return the array holding the hashes
+         */
+        byte[] add(final String name, final int length) {
+            if (size == names.length) {
+                final int capacity = size * 2;
+                names = Arrays.copyOf(names, capacity);
+                offsets = Arrays.copyOf(offsets, capacity + 1);
+                order = new int[capacity];
+                scratch = new int[capacity];
+            }
+            final int offset = offsets[size];
+            if (offset + length > hashes.length) {
+                hashes = Arrays.copyOf(hashes, Math.max(hashes.length * 2, offset + length));
+            }
+            names[size] = name;
+            offsets[++size] = offset + length;
+            return hashes;
         }
 
-        @Override
-        public int hashCode() {
-            return name.hashCode();
+        void add(final String name, final MessageDigest digest) throws IOException {
+            final int length = digest.getDigestLength();
+            final byte[] target = add(name, length);
+            try {
+                digest.digest(target, offsets[size - 1], length);
+            } catch (DigestException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void add(final String name, final byte[] hash, final int offset, final int length) {
+            final byte[] target = add(name, length);
+            System.arraycopy(hash, offset, target, offsets[size - 1], length);
+        }
+
+        /**
+         * Update the digest with the hashes ordered by name.
+         *
+         * @param digest the digest
+         */
+        void update(final MessageDigest digest) {
+            sort();
+            String previous = null;
+            for (int i = 0; i < size; i++) {
+                final int index = order[i];
+                final String name = names[index];
+                if (name.equals(previous)) {
+                    continue;
+                }
+                previous = name;
+                digest.update(hashes, offsets[index], offsets[index + 1] - offsets[index]);
+            }
+        }
+
+        /**
+         * Get the hashes ordered by name, the same bytes {@link #update(MessageDigest)} adds to a digest.
+         *
+         * @return the concatenated hashes
+         */
+        byte[] toByteArray() {
+            sort();
+            final byte[] result = new byte[offsets[size]];
+            int position = 0;
+            String previous = null;
+            for (int i = 0; i < size; i++) {
+                final int index = order[i];
+                final String name = names[index];
+                if (name.equals(previous)) {
+                    continue;
+                }
+                previous = name;
+                final int length = offsets[index + 1] - offsets[index];
+                System.arraycopy(hashes, offsets[index], result, position, length);
+                position += length;
+            }
+            return position == result.length ? result : Arrays.copyOf(result, position);
+        }
+
+        void reset() {
+            Arrays.fill(names, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * Stable bottom-up merge sort of the entry indexes by name, equal names keep the order they were added in.
+         */
+        private void sort() {
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            int[] from = order;
+            int[] to = scratch;
+            for (int width = 1; width < size; width *= 2) {
+                for (int low = 0; low < size; low += 2 * width) {
+                    final int middle = Math.min(low + width, size);
+                    final int high = Math.min(low + 2 * width, size);
+                    int left = low;
+                    int right = middle;
+                    for (int k = low; k < high; k++) {
+                        if (left < middle && (right >= high || names[from[left]].compareTo(names[from[right]]) <= 0)) {
+                            to[k] = from[left++];
+                        } else {
+                            to[k] = from[right++];
+                        }
+                    }
+                }
+                final int[] swap = from;
+                from = to;
+                to = swap;
+            }
+            order = from;
+            scratch = to;
         }
     }
 
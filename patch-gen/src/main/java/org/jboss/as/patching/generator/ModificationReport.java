@@ -0,0 +1,174 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.jboss.as.patching.HashUtils;
+import org.jboss.as.patching.metadata.ContentType;
+import org.jboss.as.patching.metadata.ModificationType;
+
+/**
+ * Writes the modifications found by the comparison as JSON Lines, one object per line, as soon as each modification
+ * is found. Lines of different layers may interleave, but are never mixed.
+ * <p/>
+ * Each object has the fields {@code base} (the version of the distribution the patch applies to), {@code type}
+ * ({@code ADD}, {@code MODIFY} or {@code REMOVE}) and {@code content} ({@code MISC}, {@code MODULE} or {@code BUNDLE}).
+ * A misc item has the {@code path} relative to the distribution root, separated by {@code /}, and whether it is a
+ * {@code directory}. A module or bundle has its {@code layer}, {@code name} and {@code slot}. The original and updated
+ * item, depending on the type, are described by {@code originalSize} and {@code originalHash}, or {@code updatedSize}
+ * and {@code updatedHash}. The size is in bytes as scanned, for a directory the total size of the contained files,
+ * and the hash is the hex encoded SHA1 written to the patch metadata.
+ */
+class ModificationReport implements PatchBuilderWrapper.ModificationListener {
+
+    private final Writer writer;
+    private final String base;
+
+    /**
+     * Create a report.
+     *
+     * @param writer the writer, flushed after every line
+     * @param base   the version of the distribution the patch applies to
+     */
+    ModificationReport(final Writer writer, final String base) {
+        this.writer = writer;
+        this.base = base;
+    }
+
+    @Override
+    public boolean isSizeSufficient() {
+        // The hashes are reported
+        return false;
+    }
+
+    @Override
+    public void miscModified(final ModificationType type, final DistributionContentItem original, final DistributionContentItem updated) {
+        final DistributionContentItem item = updated != null ? updated : original;
+        final StringBuilder line = start(type, ContentType.MISC);
+        appendString(line, "path", item.getPath('/'));
+        line.append(",\"directory\":").append(!item.isLeaf());
+        appendItem(line, "original", original);
+        appendItem(line, "updated", updated);
+        write(line);
+    }
+
+    @Override
+    public void moduleModified(final ModificationType type, final String layer, final boolean bundle, final DistributionModuleItem original,
+                               final DistributionModuleItem updated) {
+        final DistributionModuleItem item = updated != null ? updated : original;
+        final StringBuilder line = start(type, bundle ? ContentType.BUNDLE : ContentType.MODULE);
+        appendString(line, "layer", layer);
+        appendString(line, "name", item.getName());
+        appendString(line, "slot", item.getSlot());
+        if (original != null) {
+            appendSize(line, "originalSize", original.getItem());
+            appendString(line, "originalHash", HashUtils.bytesToHexString(original.getMetadataHash()));
+        }
+        if (updated != null) {
+            appendSize(line, "updatedSize", updated.getItem());
+            appendString(line, "updatedHash", HashUtils.bytesToHexString(updated.getMetadataHash()));
+        }
+        write(line);
+    }
+
+    private StringBuilder start(final ModificationType type, final ContentType content) {
+        final StringBuilder line = new StringBuilder(256).append('{');
+        appendString(line, "base", base);
+        appendString(line, "type", type.name());
+        appendString(line, "content", content.name());
+        return line;
+    }
+
+    private static void appendItem(final StringBuilder line, final String prefix, final DistributionContentItem item) {
+        if (item != null) {
+            appendSize(line, prefix + "Size", item);
+            appendString(line, prefix + "Hash", HashUtils.bytesToHexString(item.getMetadataHash()));
+        }
+    }
+
+    private static void appendSize(final StringBuilder line, final String name, final DistributionContentItem item) {
+        if (item instanceof DistributionItemFileImpl) {
+            final long size = ((DistributionItemFileImpl) item).getContentSize();
+            if (size >= 0) {
+                line.append(",\"").append(name).append("\":").append(size);
+            }
+        }
+    }
+
+    private static void appendString(final StringBuilder line, final String name, final String value) {
+        if (line.length() > 1) {
+            line.append(',');
+        }
+        line.append('"').append(name).append("\":");
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+
+    private void write(final StringBuilder line) {
+        line.append("}\n");
+        // Called concurrently for different layers
+        synchronized (writer) {
+            try {
+                writer.write(line.toString());
+                writer.flush();
+            } catch (IOException e) {
+                throw processingError(e, "failed to write the report");
+            }
+        }
+    }
+
+}
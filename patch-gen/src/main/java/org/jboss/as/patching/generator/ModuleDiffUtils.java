@@ -14,7 +14,6 @@ import java.security.NoSuchAlgorithmException;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
-import org.jboss.as.patching.HashUtils;
 
 /**
  * @author Emanuel Muckenhuber
@@ -22,6 +21,11 @@ import org.jboss.as.patching.HashUtils;
 class ModuleDiffUtils implements XMLStreamConstants {
 
     private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        // Configure once, since distributions may be processed concurrently
+        setIfSupported(INPUT_FACTORY, XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+        setIfSupported(INPUT_FACTORY, XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
 
     protected static volatile boolean deepInspection = false;
 
@@ -39,6 +43,24 @@ class ModuleDiffUtils implements XMLStreamConstants {
      * @throws NoSuchAlgorithmException
      */
     public static byte[] processModule(final File root, final String moduleName, final byte[] metadataHash) throws IOException, NoSuchAlgorithmException {
+        return processModule(root, moduleName, metadataHash, false, null, null);
+    }
+
+    /**
+     * Process a module, using either the configured comparison digest or SHA1.
+     *
+     * @param root          the module root
+     * @param moduleName    the module name
+     * @param metadataHash  the hash used for the metadata
+     * @param strong        whether to use SHA1 rather than the configured comparison digest
+     * @param cache         the hashes shared with identical jars, may be {@code null}
+     * @param signature     the signature of the module content as scanned, may be {@code null}
+     * @return the comparison hash for the module
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static byte[] processModule(final File root, final String moduleName, final byte[] metadataHash, final boolean strong, final HashCache cache,
+                                final Object signature) throws IOException, NoSuchAlgorithmException {
 
         if (! deepInspection) {
             return metadataHash;
@@ -50,15 +72,16 @@ class ModuleDiffUtils implements XMLStreamConstants {
         }
 
         final Set<String> resources = new LinkedHashSet<>();
-        final MessageDigest moduleDigest = MessageDigest.getInstance("SHA1");
+        final ComparisonDigest digests = ComparisonDigest.get(strong);
+        final MessageDigest moduleDigest = digests.getModuleDigest();
 
         // Process the module.xml
         final InputStream stream = new FileInputStream(moduleXml);
         try {
-            final XMLInputFactory inputFactory = INPUT_FACTORY;
-            setIfSupported(inputFactory, XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
-            setIfSupported(inputFactory, XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
-            final XMLStreamReader reader = inputFactory.createXMLStreamReader(stream);
+            final XMLStreamReader reader;
+            synchronized (INPUT_FACTORY) {
+                reader = INPUT_FACTORY.createXMLStreamReader(stream);
+            }
             processRoot(reader, moduleDigest, resources);
         } catch (XMLStreamException e) {
             throw new IOException(e);
@@ -76,24 +99,38 @@ class ModuleDiffUtils implements XMLStreamConstants {
             }
             if (path.endsWith(".jar")) {
                 try {
-                    JarDiffUtils.internalJarComparison(resource, moduleDigest, false);
+                    if (cache != null) {
+                        moduleDigest.update(cache.getEntryHashes(resource, strong, HashCache.getSignature(signature, path)));
+                    } else {
+                        JarDiffUtils.internalJarComparison(resource, moduleDigest, strong, false);
+                    }
                 } catch (Exception e) {
                     throw new IOException("failed to process " + resource.getAbsolutePath(), e);
                 }
             } else {
-                moduleDigest.update(HashUtils.hashFile(resource));
+                moduleDigest.update(hashFile(digests, resource));
             }
         }
 
         // Process native libs
         final File lib = new File(root, "lib");
         if (lib.exists()) {
-            moduleDigest.update(HashUtils.hashFile(lib));
+            moduleDigest.update(hashFile(digests, lib));
         }
 
         return moduleDigest.digest();
     }
 
+    private static byte[] hashFile(final ComparisonDigest digests, final File file) throws IOException {
+        if (digests.isStrong()) {
+            // Same as the metadata hash of the file
+            return FileHashing.hashFile(file);
+        }
+        final MessageDigest digest = digests.getResourceDigest();
+        FileHashing.updateDigest(digest, file);
+        return digest.digest();
+    }
+
     protected static void processRoot(final XMLStreamReader reader, final MessageDigest digest, final Set<String> resources) throws XMLStreamException {
 
         reader.require(START_DOCUMENT, null, null);
@@ -101,7 +138,7 @@ class ModuleDiffUtils implements XMLStreamConstants {
         reader.require(START_ELEMENT, null, null);
 
         final String namespace = reader.getNamespaceURI();
-        digest.update(namespace.getBytes());
+        DigestUtils.update(digest, namespace);
         processAttributes(reader, digest);
         processXml(reader, digest, resources);
         while (reader.next() != END_DOCUMENT) {
@@ -115,7 +152,7 @@ class ModuleDiffUtils implements XMLStreamConstants {
             if (localName.equals("resources")) {
                 processResources(reader, resources);
             } else {
-                digest.update(localName.getBytes());
+                DigestUtils.update(digest, localName);
                 processXml(reader, digest, resources);
             }
         }
@@ -126,8 +163,8 @@ class ModuleDiffUtils implements XMLStreamConstants {
         for (int i = 0; i < attributes; i++) {
             final String name = reader.getAttributeLocalName(i);
             final String value = reader.getAttributeValue(i);
-            digest.update(name.getBytes());
-            digest.update(value.getBytes());
+            DigestUtils.update(digest, name);
+            DigestUtils.update(digest, value);
         }
     }
 
@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An open addressing index of the modules or bundles of a layer, used to match the items of both distributions.
+ * Items are found by their precomputed hash using linear probing, removed items are only cleared from the entries, so
+ * the probe sequences stay intact.
+ */
+final class ModuleIndex {
+
+    private final DistributionModuleItem[] entries;
+    // the position of an entry + 1, 0 for a free slot
+    private final int[] table;
+    private final int mask;
+    private int size;
+
+    ModuleIndex(final Collection<DistributionModuleItem> items) {
+        entries = new DistributionModuleItem[items.size()];
+        int capacity = 2;
+        while (capacity < items.size() * 2) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (final DistributionModuleItem item : items) {
+            int slot = spread(item.hashCode()) & mask;
+            while (table[slot] != 0) {
+                if (entries[table[slot] - 1].equals(item)) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                entries[size] = item;
+                table[slot] = ++size;
+            }
+        }
+    }
+
+    /**
+     * Remove the item with the same name and slot.
+     *
+     * @param key the item to look for
+     * @return the removed item, {@code null} if there is none
+     */
+    DistributionModuleItem remove(final DistributionModuleItem key) {
+        int slot = spread(key.hashCode()) & mask;
+        while (table[slot] != 0) {
+            final int index = table[slot] - 1;
+            final DistributionModuleItem item = entries[index];
+            if (item != null && item.equals(key)) {
+                entries[index] = null;
+                return item;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Get the items which were not removed, in the order they were indexed.
+     *
+     * @return the remaining items
+     */
+    List<DistributionModuleItem> getRemaining() {
+        final List<DistributionModuleItem> remaining = new ArrayList<DistributionModuleItem>();
+        for (int i = 0; i < size; i++) {
+            if (entries[i] != null) {
+                remaining.add(entries[i]);
+            }
+        }
+        return remaining;
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -24,6 +24,7 @@ package org.jboss.as.patching.generator;
 
 import static org.jboss.as.patching.generator.PatchGenerator.processingError;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -33,13 +34,24 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jboss.as.patching.IoUtils;
+import org.jboss.as.patching.metadata.BundleItem;
+import org.jboss.as.patching.metadata.ContentItem;
 import org.jboss.as.patching.metadata.MiscContentItem;
 import org.jboss.as.patching.metadata.ModificationBuilderTarget;
 import org.jboss.as.patching.metadata.ModificationCondition;
+import org.jboss.as.patching.metadata.ModificationType;
+import org.jboss.as.patching.metadata.ModuleItem;
 import org.jboss.as.patching.metadata.Patch;
 import org.jboss.as.patching.metadata.PatchBuilder;
 import org.jboss.as.patching.metadata.PatchElementBuilder;
+import org.jboss.as.patching.runner.ContentItemFilter;
 
 /**
  * Basic wrapper of a {@code PatchBuilder} implementing the comparison of two distributions.
@@ -50,11 +62,52 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
 
 
     private FSPathElement optionalPaths = new FSPathElement("root");
+    private ModificationListener listener;
 
     protected PatchBuilderWrapper() {
         //
     }
 
+    /**
+     * Notified of every modification found by the comparison, before it is added to the patch. Modifications which
+     * the content filter of the patch or of its element drops, e.g. content not specified by a one-off patch, are not
+     * reported.
+     */
+    interface ModificationListener {
+
+        /**
+         * Whether a different size is enough to consider a misc file modified. If so, the hashes of modified misc
+         * files are not needed and may not be computed.
+         *
+         * @return {@code true} to compare the size of misc files before their hashes
+         */
+        boolean isSizeSufficient();
+
+        /**
+         * A misc file or directory was added, removed or modified.
+         *
+         * @param type     the modification type
+         * @param original the original item, {@code null} if added
+         * @param updated  the updated item, {@code null} if removed
+         */
+        void miscModified(ModificationType type, DistributionContentItem original, DistributionContentItem updated);
+
+        /**
+         * A module or bundle was added, removed or modified. Called concurrently for different layers and add-ons.
+         *
+         * @param type     the modification type
+         * @param layer    the layer or add-on name
+         * @param bundle   whether it is a bundle or a module
+         * @param original the original item, {@code null} if added
+         * @param updated  the updated item, {@code null} if removed
+         */
+        void moduleModified(ModificationType type, String layer, boolean bundle, DistributionModuleItem original, DistributionModuleItem updated);
+    }
+
+    void setModificationListener(final ModificationListener listener) {
+        this.listener = listener;
+    }
+
     void setOptionalPaths(Collection<OptionalPath> optionalPaths) {
         for(OptionalPath path : optionalPaths) {
             final String[] split = path.getValue().split("/");
@@ -67,6 +120,25 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
 
     abstract PatchElementBuilder modifyLayer(final String name, final boolean addOn);
 
+    /**
+     * Get the filter the patch builder applies to the misc files.
+     *
+     * @return the filter, {@code null} if all misc files are accepted
+     */
+    ContentItemFilter getContentItemFilter() {
+        return null;
+    }
+
+    /**
+     * Get the filter the element builder of a layer or add-on applies to its modules and bundles.
+     *
+     * @param name the layer or add-on name
+     * @return the filter, {@code null} if all modules and bundles are accepted
+     */
+    ContentItemFilter getContentItemFilter(final String name) {
+        return null;
+    }
+
     /**
      * Create a patch based on the comparison of two distributions.
      *
@@ -141,6 +213,14 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
 
     /**
      * Compare two distributions.
+     * <p/>
+     * The element builders are created in the same order as a sequential comparison, the layers and add-ons are then
+     * compared concurrently while the misc files are compared on the calling thread. Each element builder is only used
+     * by a single task, so the generated patch is the same as with a sequential comparison. Failures are reported in the
+     * order a sequential comparison would encounter them.
+     * <p/>
+     * With a {@link ModificationListener}, the misc files are compared concurrently as well and the first failure is
+     * propagated as soon as it occurs, so a listener can end the comparison early by throwing.
      *
      * @param builder  the patch builder
      * @param original the original distribution
@@ -148,63 +228,208 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
      */
     static void compare(final PatchBuilderWrapper builder, final Distribution original, final Distribution updated, final boolean includeVersion) {
 
-        // Compare misc files
-        final DistributionContentItem or = original.getRoot();
-        final DistributionContentItem nr = updated.getRoot();
+        final ModificationListener listener = builder.listener;
+        final ModificationListener miscListener = filter(builder.listener, builder.getContentItemFilter());
+        final List<LayerComparison> comparisons = new ArrayList<LayerComparison>();
+        RuntimeException failure = null;
+        try {
+            // Compare layers
+            final Set<String> originalLayers = new LinkedHashSet<String>(original.getLayers());
+            final Set<String> updatedLayers = new LinkedHashSet<String>(updated.getLayers());
+
+            for (final String layer : originalLayers) {
+                final Distribution.ProcessedLayer originalLayer = original.getLayer(layer);
+                final Distribution.ProcessedLayer updatedLayer;
+                final PatchElementBuilder elementBuilder;
+                if (updatedLayers.remove(layer)) {
+                    elementBuilder = builder.modifyLayer(layer);
+                    updatedLayer = updated.getLayer(layer);
+                } else {
+                    elementBuilder = builder.removeLayer(layer);
+                    updatedLayer = null;
+                }
+                //
+                comparisons.add(new LayerComparison(layer, elementBuilder, originalLayer, updatedLayer, includeVersion, builder.getListener(layer)));
+            }
 
-        compareMiscFiles(builder, or, nr, builder.optionalPaths);
+            for (final String layer : updatedLayers) {
+                final Distribution.ProcessedLayer originalLayer = null;
+                final Distribution.ProcessedLayer updatedLayer = updated.getLayer(layer);
+                final PatchElementBuilder elementBuilder = builder.addLayer(layer);
+                //
+                comparisons.add(new LayerComparison(layer, elementBuilder, originalLayer, updatedLayer, includeVersion, builder.getListener(layer)));
+            }
+
+            // Compare add-ons
+            final Set<String> originalAddOns = new LinkedHashSet<String>(original.getAddOns());
+            final Set<String> updatedAddOns = new LinkedHashSet<String>(updated.getAddOns());
+
+            for (final String addOn : originalAddOns) {
+                final Distribution.ProcessedLayer originalLayer = original.getAddOn(addOn);
+                final Distribution.ProcessedLayer updatedLayer;
+                final PatchElementBuilder elementBuilder;
+                if (updatedAddOns.remove(addOn)) {
+                    elementBuilder = builder.modifyAddOn(addOn);
+                    updatedLayer = updated.getAddOn(addOn);
+                } else {
+                    elementBuilder = builder.removeAddOn(addOn);
+                    updatedLayer = null;
+                }
+                //
+                comparisons.add(new LayerComparison(addOn, elementBuilder, originalLayer, updatedLayer, includeVersion, builder.getListener(addOn)));
+            }
 
-        // Compare layers
-        final Set<String> originalLayers = new LinkedHashSet<String>(original.getLayers());
-        final Set<String> updatedLayers = new LinkedHashSet<String>(updated.getLayers());
+            for (final String addOn : updatedAddOns) {
+                final PatchElementBuilder elementBuilder = builder.addAddOn(addOn);
+                comparisons.add(new LayerComparison(addOn, elementBuilder, null, updated.getAddOn(addOn), includeVersion, builder.getListener(addOn)));
+            }
+        } catch (RuntimeException e) {
+            // Report after the comparisons which would have run before
+            failure = e;
+        }
 
-        for (final String layer : originalLayers) {
-            final Distribution.ProcessedLayer originalLayer = original.getLayer(layer);
-            final Distribution.ProcessedLayer updatedLayer;
-            final PatchElementBuilder elementBuilder;
-            if (updatedLayers.remove(layer)) {
-                elementBuilder = builder.modifyLayer(layer);
-                updatedLayer = updated.getLayer(layer);
+        final int tasks = listener == null ? comparisons.size() : comparisons.size() + 1;
+        final ExecutorService executor = ConcurrencyUtils.newFixedThreadPool("patch-gen-compare", Math.min(tasks, ConcurrencyUtils.DEFAULT_THREADS));
+        try {
+            // Compare misc files
+            final DistributionContentItem or = original.getRoot();
+            final DistributionContentItem nr = updated.getRoot();
+
+            if (listener != null) {
+                final CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+                completion.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        compareMiscFiles(builder, or, nr, builder.optionalPaths, miscListener);
+                        return null;
+                    }
+                });
+                for (final LayerComparison comparison : comparisons) {
+                    completion.submit(comparison);
+                }
+                ConcurrencyUtils.awaitAll(completion, tasks);
             } else {
-                elementBuilder = builder.removeLayer(layer);
-                updatedLayer = null;
+                final List<Future<Void>> futures = new ArrayList<Future<Void>>(comparisons.size());
+                for (final LayerComparison comparison : comparisons) {
+                    futures.add(executor.submit(comparison));
+                }
+
+                compareMiscFiles(builder, or, nr, builder.optionalPaths, null);
+
+                for (final Future<Void> future : futures) {
+                    ConcurrencyUtils.join(future);
+                }
             }
-            //
-            compareLayer(layer, elementBuilder, originalLayer, updatedLayer, includeVersion);
+        } catch (IOException e) {
+            throw processingError(e, "failed to compare distributions");
+        } finally {
+            executor.shutdownNow();
         }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-        for (final String layer : updatedLayers) {
-            final Distribution.ProcessedLayer originalLayer = null;
-            final Distribution.ProcessedLayer updatedLayer = updated.getLayer(layer);
-            final PatchElementBuilder elementBuilder = builder.addLayer(layer);
-            //
-            compareLayer(layer, elementBuilder, originalLayer, updatedLayer, includeVersion);
+    /**
+     * Compare the modules or bundles of a single layer or add-on, which both distributions scanned completely, while
+     * the rest of the distributions may still be scanned. The modifications are only reported to the listener, this is
+     * used to find changes early and does not replace the comparison of the distributions. A layer or add-on without
+     * patch-config is skipped, it is reported by the comparison of the distributions.
+     *
+     * @param original       the original layer or add-on
+     * @param updated        the updated layer or add-on
+     * @param bundles        whether to compare the bundles or the modules
+     * @param includeVersion whether the version module is compared by its metadata hash
+     */
+    void compareScanned(final Distribution.ProcessedLayer original, final Distribution.ProcessedLayer updated, final boolean bundles,
+                        final boolean includeVersion) {
+        final String name = original.getName();
+        final PatchElementBuilder elementBuilder;
+        synchronized (this) {
+            elementBuilder = original.isAddOn() ? modifyAddOn(name) : modifyLayer(name);
+        }
+        if (elementBuilder == null) {
+            return;
+        }
+        if (bundles) {
+            compareModuleItems(name, elementBuilder, original.getBundles(), updated.getBundles(), true, false, getListener(name));
+        } else {
+            compareModuleItems(name, elementBuilder, original.getModules(), updated.getModules(), false, includeVersion, getListener(name));
         }
+    }
 
-        // Compare add-ons
-        final Set<String> originalAddOns = new LinkedHashSet<String>(original.getAddOns());
-        final Set<String> updatedAddOns = new LinkedHashSet<String>(updated.getAddOns());
+    private ModificationListener getListener(final String name) {
+        return filter(listener, getContentItemFilter(name));
+    }
 
-        for (final String addOn : originalAddOns) {
-            final Distribution.ProcessedLayer originalLayer = original.getAddOn(addOn);
-            final Distribution.ProcessedLayer updatedLayer;
-            final PatchElementBuilder elementBuilder;
-            if (updatedAddOns.remove(addOn)) {
-                elementBuilder = builder.modifyAddOn(addOn);
-                updatedLayer = updated.getAddOn(addOn);
-            } else {
-                elementBuilder = builder.removeAddOn(addOn);
-                updatedLayer = null;
+    private static ModificationListener filter(final ModificationListener listener, final ContentItemFilter filter) {
+        return listener == null || filter == null ? listener : new FilteredListener(listener, filter);
+    }
+
+    /**
+     * Only passes on the modifications accepted by a content filter. The filters only look at the names and paths of
+     * the content items, so these are created without hashes, which may not be computed yet.
+     */
+    private static class FilteredListener implements ModificationListener {
+
+        private final ModificationListener listener;
+        private final ContentItemFilter filter;
+
+        FilteredListener(final ModificationListener listener, final ContentItemFilter filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean isSizeSufficient() {
+            return listener.isSizeSufficient();
+        }
+
+        @Override
+        public void miscModified(final ModificationType type, final DistributionContentItem original, final DistributionContentItem updated) {
+            final DistributionContentItem item = updated != null ? updated : original;
+            final ContentItem contentItem = new MiscContentItem(item.getName(), item.getParent().getPathAsList(), IoUtils.NO_CONTENT, !item.isLeaf());
+            if (filter.accepts(contentItem)) {
+                listener.miscModified(type, original, updated);
             }
-            //
-            compareLayer(addOn, elementBuilder, originalLayer, updatedLayer, includeVersion);
         }
 
-        for (final String addOn : updatedAddOns) {
-            final PatchElementBuilder elementBuilder = builder.addAddOn(addOn);
-            compareLayer(addOn, elementBuilder, null, updated.getAddOn(addOn), includeVersion);
+        @Override
+        public void moduleModified(final ModificationType type, final String layer, final boolean bundle, final DistributionModuleItem original,
+                                   final DistributionModuleItem updated) {
+            final DistributionModuleItem item = updated != null ? updated : original;
+            final ContentItem contentItem = bundle ? new BundleItem(item.getName(), item.getSlot(), IoUtils.NO_CONTENT)
+                    : new ModuleItem(item.getName(), item.getSlot(), IoUtils.NO_CONTENT);
+            if (filter.accepts(contentItem)) {
+                listener.moduleModified(type, layer, bundle, original, updated);
+            }
         }
+    }
 
+    static class LayerComparison implements Callable<Void> {
+
+        private final String layer;
+        private final PatchElementBuilder elementBuilder;
+        private final Distribution.ProcessedLayer originalLayer;
+        private final Distribution.ProcessedLayer updatedLayer;
+        private final boolean includeVersion;
+        private final ModificationListener listener;
+
+        LayerComparison(String layer, PatchElementBuilder elementBuilder, Distribution.ProcessedLayer originalLayer,
+                        Distribution.ProcessedLayer updatedLayer, boolean includeVersion, ModificationListener listener) {
+            this.layer = layer;
+            this.elementBuilder = elementBuilder;
+            this.originalLayer = originalLayer;
+            this.updatedLayer = updatedLayer;
+            this.includeVersion = includeVersion;
+            this.listener = listener;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            compareLayer(layer, elementBuilder, originalLayer, updatedLayer, includeVersion, listener);
+            return null;
+        }
     }
 
     /**
@@ -213,11 +438,12 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
      * @param elementBuilder the element builder
      * @param originalLayer  the original layer
      * @param updatedLayer   the updated layer
+     * @param listener       the modification listener, may be {@code null}
      */
     static void compareLayer(final String layer, final PatchElementBuilder elementBuilder, final Distribution.ProcessedLayer originalLayer,
-            final Distribution.ProcessedLayer updatedLayer, boolean includeVersion) {
-        compareModuleItems(layer, elementBuilder, originalLayer.getModules(), updatedLayer.getModules(), false, includeVersion); // Modules
-        compareModuleItems(layer, elementBuilder, originalLayer.getBundles(), updatedLayer.getBundles(), true, false);  // Bundles
+            final Distribution.ProcessedLayer updatedLayer, boolean includeVersion, final ModificationListener listener) {
+        compareModuleItems(layer, elementBuilder, originalLayer.getModules(), updatedLayer.getModules(), false, includeVersion, listener); // Modules
+        compareModuleItems(layer, elementBuilder, originalLayer.getBundles(), updatedLayer.getBundles(), true, false, listener);  // Bundles
     }
 
     /**
@@ -227,31 +453,36 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
      * @param original       the original module set
      * @param updated        the updated module set
      * @param bundle         whether is a bundle or module
+     * @param listener       the modification listener, may be {@code null}
      */
     static void compareModuleItems(final String layer, final PatchElementBuilder elementBuilder, final Collection<DistributionModuleItem> original,
-                                   final Collection<DistributionModuleItem> updated, boolean bundle, boolean includeVersion) {
+                                   final Collection<DistributionModuleItem> updated, boolean bundle, boolean includeVersion,
+                                   final ModificationListener listener) {
 
-        final Map<String, DistributionModuleItem> modules = new HashMap<String, DistributionModuleItem>();
-        for (final DistributionModuleItem item : updated) {
-            modules.put(item.getFullModuleName(), item);
-        }
+        final ModuleIndex modules = new ModuleIndex(updated);
 
         for (final DistributionModuleItem o : original) {
-            final DistributionModuleItem n = modules.remove(o.getFullModuleName());
+            final DistributionModuleItem n = modules.remove(o);
             if (n == null) {
                 if(elementBuilder == null) {
                     throw processingError("missing patch-config for layer/add-on %s", layer);
                 }
+                if (listener != null) {
+                    listener.moduleModified(ModificationType.REMOVE, layer, bundle, o, null);
+                }
                 if (bundle) {
                     elementBuilder.removeBundle(o.getName(), o.getSlot(), o.getMetadataHash());
                 } else {
                     elementBuilder.removeModule(o.getName(), o.getSlot(), o.getMetadataHash());
                 }
             } else {
-                if (!Arrays.equals(n.getComparisonHash(), o.getComparisonHash())) {
+                if (isModified(o, n)) {
                     if(elementBuilder == null) {
                         throw processingError("missing patch-config for layer/add-on %s", layer);
                     }
+                    if (listener != null) {
+                        listener.moduleModified(ModificationType.MODIFY, layer, bundle, o, n);
+                    }
                     if (bundle) {
                         elementBuilder.modifyBundle(n.getName(), n.getSlot(), o.getMetadataHash(), n.getMetadataHash());
                     } else {
@@ -264,17 +495,24 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
                             if(elementBuilder == null) {
                                 throw processingError("missing patch-config for layer/add-on %s", layer);
                             }
+                            if (listener != null) {
+                                listener.moduleModified(ModificationType.MODIFY, layer, false, o, n);
+                            }
                             elementBuilder.modifyModule(n.getName(), n.getSlot(), o.getMetadataHash(), n.getMetadataHash());
                         }
                     }
                 }
             }
         }
-        if(!modules.isEmpty()) {
+        final List<DistributionModuleItem> added = modules.getRemaining();
+        if(!added.isEmpty()) {
             if(elementBuilder == null) {
                 throw processingError("missing patch-config for layer/add-on %s", layer);
             }
-            for (final DistributionModuleItem item : modules.values()) {
+            for (final DistributionModuleItem item : added) {
+                if (listener != null) {
+                    listener.moduleModified(ModificationType.ADD, layer, bundle, null, item);
+                }
                 if (bundle) {
                     elementBuilder.addBundle(item.getName(), item.getSlot(), item.getMetadataHash());
                 } else {
@@ -287,21 +525,29 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
     /**
      * Compare the misc node tree.
      *
-     * @param o the original root
-     * @param n the updated root
+     * @param o        the original root
+     * @param n        the updated root
+     * @param listener the modification listener, may be {@code null}
      */
-    static void compareMiscFiles(final ModificationBuilderTarget<?> builder, final DistributionContentItem o, final DistributionContentItem n, FSPathElement optionalPaths) {
+    static void compareMiscFiles(final ModificationBuilderTarget<?> builder, final DistributionContentItem o, final DistributionContentItem n, FSPathElement optionalPaths,
+                                 final ModificationListener listener) {
         if (o == null && n == null) {
             return;
         } else if (o != null && n == null) {
+            if (listener != null) {
+                listener.miscModified(ModificationType.REMOVE, o, null);
+            }
             builder.removeFile(o.getName(), o.getParent().getPathAsList(), o.getMetadataHash(), !o.isLeaf(), getCondition(optionalPaths, o));
         } else if (o == null && n != null) {
             boolean directory = !n.isLeaf();
             if (directory) {
                 for (final DistributionContentItem child : n.getChildren()) {
-                    compareMiscFiles(builder, null, child, optionalPaths);
+                    compareMiscFiles(builder, null, child, optionalPaths, listener);
                 }
             } else {
+                if (listener != null) {
+                    listener.miscModified(ModificationType.ADD, null, n);
+                }
                 builder.addFile(n.getName(), n.getParent().getPathAsList(), n.getMetadataHash(), directory, getCondition(optionalPaths, n));
             }
         } else {
@@ -311,7 +557,10 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
             if (n.isLeaf() != o.isLeaf()) {
                 throw processingError("TODO");
             }
-            if (n.isLeaf() && !Arrays.equals(o.getComparisonHash(), n.getComparisonHash())) {
+            if (n.isLeaf() && isModified(o, n, listener != null && listener.isSizeSufficient())) {
+                if (listener != null) {
+                    listener.miscModified(ModificationType.MODIFY, o, n);
+                }
                 builder.modifyFile(n.getName(), n.getParent().getPathAsList(), o.getMetadataHash(), n.getMetadataHash(), !n.isLeaf(), getCondition(optionalPaths, o));
             } else {
 
@@ -323,16 +572,69 @@ abstract class PatchBuilderWrapper extends PatchBuilder {
                 // compare
                 for (final DistributionContentItem child : o.getChildren()) {
                     final DistributionContentItem item = children.remove(child.getName());
-                    compareMiscFiles(builder, child, item, optionalPaths);
+                    compareMiscFiles(builder, child, item, optionalPaths, listener);
                 }
                 // compare missing
                 for (final DistributionContentItem child : children.values()) {
-                    compareMiscFiles(builder, null, child, optionalPaths);
+                    compareMiscFiles(builder, null, child, optionalPaths, listener);
                 }
             }
         }
     }
 
+    /**
+     * Whether a content item changed. Different comparison hashes always mean a change, equal hashes are confirmed
+     * using SHA1 if a non-cryptographic comparison digest is configured with {@code patch.gen.comparison.confirm}.
+     * Items not listed in the changed paths are trusted to be unchanged if their size is the same.
+     */
+    static boolean isModified(final DistributionContentItem o, final DistributionContentItem n) {
+        return isModified(o, n, false);
+    }
+
+    /**
+     * Whether a misc file changed, optionally comparing the size of the files before hashing them.
+     *
+     * @param o         the original item
+     * @param n         the updated item
+     * @param sizeFirst whether a different size is enough to consider the file modified
+     * @return {@code true} if modified
+     */
+    static boolean isModified(final DistributionContentItem o, final DistributionContentItem n, final boolean sizeFirst) {
+        if (ChangedPaths.isUnchanged(o, n)) {
+            return false;
+        }
+        if (sizeFirst && isSizeChanged(o, n)) {
+            return true;
+        }
+        if (!Arrays.equals(o.getComparisonHash(), n.getComparisonHash())) {
+            return true;
+        }
+        return ComparisonDigest.CONFIRM && !Arrays.equals(o.getStrongComparisonHash(), n.getStrongComparisonHash());
+    }
+
+    /**
+     * Whether the size of a misc file changed, as recorded by the scan. The comparison hash of a misc file is the hash
+     * of its content, unless it is compared as a jar, so a different size means different comparison hashes.
+     */
+    static boolean isSizeChanged(final DistributionContentItem o, final DistributionContentItem n) {
+        if (!(o instanceof DistributionItemFileImpl) || !(n instanceof DistributionItemFileImpl) || !n.isLeaf() || ".jar".equals(n.getName())) {
+            return false;
+        }
+        final long originalSize = ((DistributionItemFileImpl) o).getContentSize();
+        final long updatedSize = ((DistributionItemFileImpl) n).getContentSize();
+        return originalSize >= 0 && updatedSize >= 0 && originalSize != updatedSize;
+    }
+
+    static boolean isModified(final DistributionModuleItem o, final DistributionModuleItem n) {
+        if (o.getItem() != null && n.getItem() != null && ChangedPaths.isUnchanged(o.getItem(), n.getItem())) {
+            return false;
+        }
+        if (!Arrays.equals(o.getComparisonHash(), n.getComparisonHash())) {
+            return true;
+        }
+        return ComparisonDigest.CONFIRM && !Arrays.equals(o.getStrongComparisonHash(), n.getStrongComparisonHash());
+    }
+
     static ModificationCondition getCondition(FSPathElement optionalPaths, DistributionContentItem item) {
         if(optionalPaths.children.isEmpty()) {
             return null;
@@ -26,6 +26,7 @@ import static org.jboss.as.patching.generator.PatchGenerator.processingError;
 
 import javax.xml.stream.XMLStreamException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -33,12 +34,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.jboss.as.patching.IoUtils;
 import org.jboss.as.patching.PatchingException;
@@ -54,6 +64,7 @@ import org.jboss.as.patching.metadata.PatchXml;
 class PatchBundleGenerator {
 
     private static final String LF = "\r\n";
+    private static final long ZIP64_THRESHOLD = ZipArchive.MAX_VALUE - (1L << 24);
     private File tmp;
 
     public static void assemble(final String... args) throws Exception {
@@ -61,6 +72,7 @@ class PatchBundleGenerator {
         String patchArg = null;
         String existingArg = null;
         String outputArg = null;
+        boolean append = false;
 
         final int argsLength = args.length;
         for (int i = 0; i < argsLength; i++) {
@@ -75,6 +87,8 @@ class PatchBundleGenerator {
                     existingArg = arg.substring("--existing=".length());
                 } else if (arg.startsWith("--output=")) {
                     outputArg = arg.substring("--output=".length());
+                } else if (arg.equals("--append")) {
+                    append = true;
                 } else if (arg.equals("--assemble-patch-bundle")) {
                     continue;
                 } else {
@@ -89,10 +103,17 @@ class PatchBundleGenerator {
             }
         }
 
+        if (append && outputArg == null) {
+            outputArg = existingArg;
+        }
+
         final Set<String> missing = new HashSet<String>();
         if (patchArg == null) {
             missing.add("--patch");
         }
+        if (append && existingArg == null) {
+            missing.add("--existing");
+        }
         if (outputArg == null) {
             missing.add("--output");
         }
@@ -117,15 +138,249 @@ class PatchBundleGenerator {
         final File e = existingArg == null ? null : new File(existingArg);
         final File t = new File(outputArg);
 
+        if (append && !e.getCanonicalFile().equals(t.getCanonicalFile())) {
+            System.err.println("--append updates the --existing bundle, --output must be omitted or point to the same file");
+            usage();
+            return;
+        }
+
         try {
-            gen.assemble(patches, e, t);
+            if (append) {
+                gen.append(patches, e);
+            } else {
+                gen.assemble(patches, e, t);
+            }
         } finally {
             IoUtils.recursiveDelete(gen.tmp);
         }
     }
 
+    /**
+     * Assemble the patch bundle. Only the metadata of the patches is read, the patches are stored in the bundle as is
+     * and the entries of an existing bundle are copied without extracting them.
+     *
+     * @param patches  the patches to add
+     * @param existing the existing bundle, or {@code null}
+     * @param target   the resulting bundle
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws PatchingException
+     */
     public void assemble(final List<File> patches, final File existing, final File target) throws IOException, XMLStreamException, PatchingException {
 
+        final ZipArchive existingArchive;
+        try {
+            existingArchive = existing != null && existing.exists() ? ZipArchive.open(existing) : null;
+        } catch (ZipArchive.UnsupportedArchiveException e) {
+            System.out.println("WARN: " + e.getMessage() + ", extracting the existing bundle instead");
+            assembleExtracted(patches, existing, target);
+            return;
+        }
+        try {
+            long size = existingArchive == null ? 0 : existing.length();
+            for (final File patch : patches) {
+                size += patch.length();
+            }
+            if (size >= ZIP64_THRESHOLD) {
+                // Leave large bundles to java.util.zip, which adds the zip64 extensions
+                assembleExtracted(patches, existing, target);
+                return;
+            }
+
+            final List<BundledPatch.BundledPatchEntry> entries = new ArrayList<BundledPatch.BundledPatchEntry>();
+            if (existingArchive != null) {
+                entries.addAll(readBundle(existing).getPatches());
+            }
+            final Map<String, File> patchPaths = new LinkedHashMap<String, File>();
+            for (final File patch : patches) {
+                final String patchID = readPatchId(patch);
+                final String patchPath = patchID + ".zip";
+
+                entries.add(new BundledPatch.BundledPatchEntry(patchID, patchPath));
+                patchPaths.put(patchPath, patch);
+            }
+
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            PatchBundleXml.marshal(os, new BundledPatch() {
+                @Override
+                public List<BundledPatchEntry> getPatches() {
+                    return entries;
+                }
+            });
+
+            // Write next to the target, the existing bundle might be replaced
+            final File parent = target.getAbsoluteFile().getParentFile();
+            final File tmpTarget = File.createTempFile(target.getName(), ".tmp", parent);
+            boolean success = false;
+            try {
+                final ZipArchiveWriter writer = new ZipArchiveWriter(tmpTarget);
+                try {
+                    writer.addEntry(PatchBundleXml.MULTI_PATCH_XML, os.toByteArray());
+                    if (existingArchive != null) {
+                        for (final ZipArchive.Entry entry : existingArchive.getEntries()) {
+                            final String name = entry.getName();
+                            if (!PatchBundleXml.MULTI_PATCH_XML.equals(name) && !patchPaths.containsKey(name)) {
+                                writer.copy(existingArchive, entry, name);
+                            }
+                        }
+                    }
+                    for (final Map.Entry<String, File> patch : patchPaths.entrySet()) {
+                        writer.addStored(patch.getKey(), patch.getValue());
+                    }
+                } finally {
+                    writer.close();
+                }
+                if (existingArchive != null) {
+                    existingArchive.close();
+                }
+                Files.move(tmpTarget.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                success = true;
+            } finally {
+                if (!success) {
+                    tmpTarget.delete();
+                }
+            }
+        } finally {
+            IoUtils.safeClose(existingArchive);
+        }
+    }
+
+    /**
+     * Append patches to an existing bundle, without rewriting it. The patches are written over the central directory
+     * of the bundle, followed by the updated {@link PatchBundleXml#MULTI_PATCH_XML} and a new central directory. The
+     * metadata of the bundle is used to reject patches which are already part of it. If appending fails, the bundle is
+     * restored.
+     *
+     * @param patches the patches to add
+     * @param bundle  the existing bundle
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws PatchingException
+     */
+    public void append(final List<File> patches, final File bundle) throws IOException, XMLStreamException, PatchingException {
+        if (!bundle.isFile()) {
+            throw new FileNotFoundException(bundle.getAbsolutePath());
+        }
+        final ZipArchive archive;
+        try {
+            archive = ZipArchive.open(bundle);
+        } catch (ZipArchive.UnsupportedArchiveException e) {
+            System.out.println("WARN: " + e.getMessage() + ", rewriting the bundle instead");
+            assemble(patches, bundle, bundle);
+            return;
+        }
+        try {
+            long size = bundle.length();
+            for (final File patch : patches) {
+                size += patch.length();
+            }
+            if (size >= ZIP64_THRESHOLD) {
+                archive.close();
+                assemble(patches, bundle, bundle);
+                return;
+            }
+
+            final List<BundledPatch.BundledPatchEntry> entries = new ArrayList<BundledPatch.BundledPatchEntry>(readBundle(bundle).getPatches());
+            final Set<String> patchIds = new HashSet<String>();
+            for (final BundledPatch.BundledPatchEntry entry : entries) {
+                patchIds.add(entry.getPatchId());
+            }
+            final Map<String, File> patchPaths = new LinkedHashMap<String, File>();
+            for (final File patch : patches) {
+                final String patchID = readPatchId(patch);
+                final String patchPath = patchID + ".zip";
+                if (!patchIds.add(patchID) || archive.getEntry(patchPath) != null) {
+                    throw processingError("patch %s is already part of %s", patchID, bundle.getAbsolutePath());
+                }
+                entries.add(new BundledPatch.BundledPatchEntry(patchID, patchPath));
+                patchPaths.put(patchPath, patch);
+            }
+
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            PatchBundleXml.marshal(os, new BundledPatch() {
+                @Override
+                public List<BundledPatchEntry> getPatches() {
+                    return entries;
+                }
+            });
+
+            // The previous metadata is left behind as unreferenced data
+            final List<ZipArchive.Entry> existing = new ArrayList<ZipArchive.Entry>();
+            for (final ZipArchive.Entry entry : archive.getEntries()) {
+                if (!PatchBundleXml.MULTI_PATCH_XML.equals(entry.getName())) {
+                    existing.add(entry);
+                }
+            }
+            final long offset = archive.getCentralDirectoryOffset();
+            final FileChannel channel = FileChannel.open(bundle.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                final ByteBuffer tail = ZipArchive.read(channel, offset, (int) (channel.size() - offset));
+                boolean success = false;
+                try {
+                    final ZipArchiveWriter writer = new ZipArchiveWriter(channel, offset, existing);
+                    for (final Map.Entry<String, File> patch : patchPaths.entrySet()) {
+                        writer.addStored(patch.getKey(), patch.getValue());
+                    }
+                    writer.addEntry(PatchBundleXml.MULTI_PATCH_XML, os.toByteArray());
+                    writer.finish();
+                    channel.force(false);
+                    success = true;
+                } finally {
+                    if (!success) {
+                        // Restore the previous central directory
+                        channel.truncate(offset);
+                        long position = offset;
+                        while (tail.hasRemaining()) {
+                            position += channel.write(tail, position);
+                        }
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+        } finally {
+            IoUtils.safeClose(archive);
+        }
+    }
+
+    private static BundledPatch readBundle(final File bundle) throws IOException, XMLStreamException {
+        final ZipFile zipFile = new ZipFile(bundle);
+        try {
+            final ZipEntry entry = zipFile.getEntry(PatchBundleXml.MULTI_PATCH_XML);
+            if (entry == null) {
+                throw processingError("%s not found in %s", PatchBundleXml.MULTI_PATCH_XML, bundle.getAbsolutePath());
+            }
+            final InputStream is = zipFile.getInputStream(entry);
+            try {
+                return PatchBundleXml.parse(is);
+            } finally {
+                IoUtils.safeClose(is);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static String readPatchId(final File patch) throws IOException, XMLStreamException, PatchingException {
+        final ZipFile zipFile = new ZipFile(patch);
+        try {
+            final ZipEntry entry = zipFile.getEntry(PatchXml.PATCH_XML);
+            if (entry == null) {
+                throw processingError("%s not found in %s", PatchXml.PATCH_XML, patch.getAbsolutePath());
+            }
+            final InputStream is = zipFile.getInputStream(entry);
+            try {
+                return PatchXml.parse(is).resolvePatch(null, null).getPatchId();
+            } finally {
+                IoUtils.safeClose(is);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private void assembleExtracted(final List<File> patches, final File existing, final File target) throws IOException, XMLStreamException, PatchingException {
+
         final File multiPatchContent = new File(tmp, "patch-bundle-content");
         multiPatchContent.mkdir();
         final File multiPatchXml = new File(multiPatchContent, PatchBundleXml.MULTI_PATCH_XML);
@@ -200,6 +455,7 @@ class PatchBundleGenerator {
         final StringBuilder builder = new StringBuilder();
         builder.append("USAGE:").append(LF);
         builder.append("patch-gen.sh --assemble-patch-bundle --patch=/path/to/the/patch --existing=/path/to/existing/patch/bundle --output=/path/to/the/output").append(LF);
+        builder.append("patch-gen.sh --assemble-patch-bundle --append --patch=/path/to/the/patch --existing=/path/to/existing/patch/bundle").append(LF);
         System.err.println(builder.toString());
     }
 
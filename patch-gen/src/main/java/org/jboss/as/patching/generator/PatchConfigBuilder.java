@@ -245,6 +245,16 @@ class PatchConfigBuilder implements ContentItemFilter {
                     builder.setContentItemFilter(config);
                     return builder;
                 }
+
+                @Override
+                ContentItemFilter getContentItemFilter() {
+                    return PatchConfigBuilder.this;
+                }
+
+                @Override
+                ContentItemFilter getContentItemFilter(String name) {
+                    return PatchConfigBuilder.this.elements.get(name);
+                }
             };
 
             wrapper.setDescription(description);
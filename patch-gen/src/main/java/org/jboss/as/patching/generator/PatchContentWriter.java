@@ -30,7 +30,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.as.patching.Constants;
 import org.jboss.as.patching.IoUtils;
@@ -65,17 +79,36 @@ abstract class PatchContentWriter {
 
     private static final String README = "README.txt";
 
+    /**
+     * Whether staged content may be hard linked to the distribution instead of being copied, can be disabled using the
+     * {@code patch.gen.staging.link} system property.
+     */
+    static final boolean LINK_CONTENT = Boolean.parseBoolean(System.getProperty("patch.gen.staging.link", "true"));
+
+    private final ContentCache cache;
+    private final ContentCopier copier;
+
+    protected PatchContentWriter() {
+        this(null, new ContentCopier(LINK_CONTENT));
+    }
+
+    protected PatchContentWriter(final ContentCache cache, final ContentCopier copier) {
+        this.cache = cache;
+        this.copier = copier;
+    }
+
     abstract File getSourceFile(final ContentItem item) throws IOException;
 
     abstract File getTargetFile(final ContentItem item) throws IOException;
 
     /**
-     * Recursively copy modification items.
+     * Create the tasks copying the modification items. The sources are checked before any content is copied.
      *
      * @param modifications the modifications
+     * @param tasks         the tasks
      * @throws IOException
      */
-    protected void copyItems(final Collection<ContentModification> modifications) throws IOException {
+    protected void copyItems(final Collection<ContentModification> modifications, final List<Callable<Void>> tasks) throws IOException {
         for (final ContentModification modification : modifications) {
             if (modification.getType() == ModificationType.REMOVE) {
                 // Skip removals
@@ -87,11 +120,35 @@ abstract class PatchContentWriter {
             if (!source.exists()) {
                 throw processingError("source item does not exist %s", source.getAbsolutePath());
             }
-            IoUtils.copyFile(source, target);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (cache != null) {
+                        cache.add(source, target);
+                    } else {
+                        copier.copy(source, target);
+                    }
+                    return null;
+                }
+            });
         }
     }
 
     static void process(final File targetRoot, final File distributionRoot, final Patch patch) throws IOException, XMLStreamException {
+        process(targetRoot, distributionRoot, patch, null);
+    }
+
+    /**
+     * Write the patch content.
+     *
+     * @param targetRoot       the target root
+     * @param distributionRoot the distribution root
+     * @param patch            the patch
+     * @param cache            the content cache shared with other patches for the same distribution, or {@code null}
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    static void process(final File targetRoot, final File distributionRoot, final Patch patch, final ContentCache cache) throws IOException, XMLStreamException {
         try {
             targetRoot.mkdirs();
 
@@ -117,7 +174,7 @@ abstract class PatchContentWriter {
                 IoUtils.safeClose(os);
             }
             // Copy
-            internalProcess(targetRoot, distributionRoot, patch);
+            internalProcess(targetRoot, distributionRoot, patch, cache);
 
         } finally {
 
@@ -130,15 +187,19 @@ abstract class PatchContentWriter {
      * @param targetRoot       the target root
      * @param distributionRoot the distribution root
      * @param patch            the patch
+     * @param cache            the shared content cache, or {@code null}
      * @throws IOException
      * @throws XMLStreamException
      */
-    static void internalProcess(final File targetRoot, final File distributionRoot, final Patch patch) throws IOException, XMLStreamException {
+    static void internalProcess(final File targetRoot, final File distributionRoot, final Patch patch, final ContentCache cache) throws IOException, XMLStreamException {
 
         // TODO get from distribution structure ...
         final File bundles = new File(distributionRoot, "bundles");
         final File modules = new File(distributionRoot, "modules");
 
+        final ContentCopier copier = new ContentCopier(LINK_CONTENT);
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
         // Copy content for all elements
         for (final PatchElement element : patch.getElements()) {
 
@@ -146,7 +207,7 @@ abstract class PatchContentWriter {
             final String base = element.getProvider().isAddOn() ? Constants.DEFAULT_ADD_ONS_PATH : Constants.DEFAULT_LAYERS_PATH;
 
             final PatchContentLoader elementLoader = PatchContentLoader.create(elementRoot);
-            final PatchContentWriter elementWriter = new PatchContentWriter() {
+            final PatchContentWriter elementWriter = new PatchContentWriter(cache, copier) {
                 @Override
                 File getSourceFile(ContentItem item) throws IOException {
                     if (item.getContentType() == ContentType.BUNDLE) {
@@ -167,13 +228,13 @@ abstract class PatchContentWriter {
                 }
             };
             // Copy
-            elementWriter.copyItems(element.getModifications());
+            elementWriter.copyItems(element.getModifications(), tasks);
         }
 
         // Copy misc items for distribution
         final File patchRoot = new File(targetRoot, patch.getPatchId());
         final PatchContentLoader targetLoader = PatchContentLoader.create(patchRoot);
-        final PatchContentWriter writer = new PatchContentWriter() {
+        final PatchContentWriter writer = new PatchContentWriter(cache, copier) {
             @Override
             File getSourceFile(ContentItem item) throws IOException {
                 if (item.getContentType() == ContentType.MISC) {
@@ -188,9 +249,189 @@ abstract class PatchContentWriter {
             }
         };
         // Copy root
-        writer.copyItems(patch.getModifications());
+        writer.copyItems(patch.getModifications(), tasks);
 
+        // Copy the elements and misc items concurrently
+        final ExecutorService executor = ConcurrencyUtils.newFixedThreadPool("patch-gen-staging", Math.min(tasks.size(), ConcurrencyUtils.DEFAULT_THREADS));
+        try {
+            ConcurrencyUtils.invokeAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
+    /**
+     * Stages content of the updated distribution only once, so that it can be shared between multiple patches generated
+     * from the same updated distribution. Instead of being copied to the target of each patch, the content is deflated
+     * once into a staging archive, whose compressed entries are copied to the archive of each patch.
+     */
+    static class ContentCache {
+
+        private final AtomicInteger count = new AtomicInteger();
+        // the name of the staged content by source
+        private final ConcurrentMap<File, String> staged = new ConcurrentHashMap<File, String>();
+        // the name of the staged content by target
+        private final ConcurrentMap<File, String> targets = new ConcurrentHashMap<File, String>();
+
+        /**
+         * Stage the source for the target, reusing already staged content.
+         *
+         * @param source the source file or directory
+         * @param target the target file or directory
+         */
+        void add(final File source, final File target) {
+            String name = staged.get(source);
+            if (name == null) {
+                final String newName = String.valueOf(count.incrementAndGet());
+                name = staged.putIfAbsent(source, newName);
+                if (name == null) {
+                    name = newName;
+                }
+            }
+            targets.put(target, name);
+        }
+
+        /**
+         * Deflate the staged content into the staging archive.
+         *
+         * @param archive the staging archive
+         * @throws IOException
+         */
+        void writeArchive(final File archive) throws IOException {
+            final Map<String, File> sources = new TreeMap<String, File>();
+            for (final Map.Entry<File, String> entry : staged.entrySet()) {
+                sources.put(entry.getValue(), entry.getKey());
+            }
+            final ZipArchiveWriter writer = new ZipArchiveWriter(archive);
+            try {
+                for (final Map.Entry<String, File> entry : sources.entrySet()) {
+                    writer.addTree(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Write the archive of a patch. The files of the patch directory, like the patch.xml, are deflated, the content
+         * staged for targets below the patch directory is copied from the staging archive as is.
+         *
+         * @param patchDir the patch directory
+         * @param content  the staging archive, see {@link #writeArchive(File)}
+         * @param result   the patch archive
+         * @throws IOException
+         */
+        void write(final File patchDir, final ZipArchive content, final File result) throws IOException {
+            final Path root = patchDir.toPath();
+            final Map<String, String> names = new TreeMap<String, String>();
+            for (final Map.Entry<File, String> entry : targets.entrySet()) {
+                final Path target = entry.getKey().toPath();
+                if (target.startsWith(root)) {
+                    names.put(getName(root.relativize(target)), entry.getValue());
+                }
+            }
+            boolean success = false;
+            final ZipArchiveWriter writer = new ZipArchiveWriter(result);
+            try {
+                final String[] children = patchDir.list();
+                if (children != null) {
+                    Arrays.sort(children);
+                    for (final String child : children) {
+                        writer.addTree(child, new File(patchDir, child));
+                    }
+                }
+                for (final Map.Entry<String, String> name : names.entrySet()) {
+                    final String prefix = name.getValue();
+                    final List<ZipArchive.Entry> entries = content.getEntries(prefix);
+                    if (entries.isEmpty()) {
+                        throw processingError("content of %s not found in %s", name.getKey(), content.getFile().getAbsolutePath());
+                    }
+                    for (final ZipArchive.Entry entry : entries) {
+                        writer.copy(content, entry, name.getKey() + entry.getName().substring(prefix.length()));
+                    }
+                }
+                success = true;
+            } finally {
+                writer.close();
+                if (!success) {
+                    result.delete();
+                }
+            }
+        }
+
+        private static String getName(final Path path) {
+            final StringBuilder builder = new StringBuilder();
+            for (final Path segment : path) {
+                if (builder.length() > 0) {
+                    builder.append('/');
+                }
+                builder.append(segment.toString());
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Copies content using hard links where the source and target share a file system, otherwise using
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which avoids copying the content
+     * through heap buffers. Links are no longer attempted once they failed, e.g. because the target is on another file
+     * system.
+     */
+    static class ContentCopier {
+
+        private volatile boolean link;
+
+        ContentCopier(final boolean link) {
+            this.link = link;
+        }
+
+        /**
+         * Recursively copy a file or directory.
+         *
+         * @param source the source file or directory
+         * @param target the target file or directory
+         * @throws IOException
+         */
+        void copy(final File source, final File target) throws IOException {
+            if (source.isDirectory()) {
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("failed to create directory " + target.getAbsolutePath());
+                }
+                final File[] children = source.listFiles();
+                if (children != null) {
+                    for (final File child : children) {
+                        copy(child, new File(target, child.getName()));
+                    }
+                }
+            } else {
+                final File parent = target.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("failed to create directory " + parent.getAbsolutePath());
+                }
+                if (link) {
+                    try {
+                        Files.deleteIfExists(target.toPath());
+                        Files.createLink(target.toPath(), source.toPath());
+                        return;
+                    } catch (IOException | UnsupportedOperationException e) {
+                        link = false;
+                    }
+                }
+                transfer(source, target);
+            }
+        }
+
+        static void transfer(final File source, final File target) throws IOException {
+            try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 final FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+        }
+    }
 
 }
@@ -30,9 +30,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -40,8 +56,9 @@ import org.jboss.as.patching.IoUtils;
 import org.jboss.as.patching.PatchingException;
 import org.jboss.as.patching.ZipUtils;
 import org.jboss.as.patching.logging.PatchLogger;
+import org.jboss.as.patching.metadata.ContentType;
+import org.jboss.as.patching.metadata.ModificationType;
 import org.jboss.as.patching.metadata.Patch;
-import org.jboss.as.patching.metadata.PatchMerger;
 import org.jboss.as.version.ProductConfig;
 import org.jboss.modules.Module;
 
@@ -57,56 +74,101 @@ import org.jboss.modules.Module;
 public class PatchGenerator {
 
     public static final String APPLIES_TO_DIST = "--applies-to-dist";
+    public static final String ARTIFACT_MAP = "--artifact-map";
+    public static final String CHANGED_PATHS = "--changed-paths";
+    public static final String CHECK_CHANGES = "--check-changes";
     public static final String ASSEMBLE_PATCH_BUNDLE = "--assemble-patch-bundle";
+    public static final String CREATE_MANIFEST = "--create-manifest";
     public static final String CREATE_TEMPLATE = "--create-template";
     public static final String DETAILED_INSPECTION = "--detailed-inspection";
     public static final String INCLUDE_VERSION = "--include-version";
+    public static final String LOCAL_REPOSITORY = "--local-repository";
     public static final String COMBINE_WITH = "--combine-with";
     public static final String OUTPUT_FILE = "--output-file";
+    public static final String PARANOID = "--paranoid";
     public static final String PATCH_CONFIG = "--patch-config";
+    public static final String REPORT_ONLY = "--report-only";
+    public static final String SEED_HASHES = "--seed-hashes";
+    public static final String SEED_HASHES_FROM = "--seed-hashes-from";
+    public static final String STAGING_DIR = "--staging-dir";
     public static final String UPDATED_DIST = "--updated-dist";
 
+    // The exit codes of --check-changes
+    private static final int EXIT_NO_CHANGES = 0;
+    private static final int EXIT_CHANGES = 1;
+    private static final int EXIT_ERROR = 2;
+
     public static void main(String[] args) {
+        final boolean checkChanges = Arrays.asList(args).contains(CHECK_CHANGES);
         try {
             PatchGenerator patchGenerator = parse(args);
             if (patchGenerator != null) {
                 patchGenerator.process();
             }
+            if (checkChanges) {
+                System.exit(patchGenerator == null ? EXIT_ERROR : patchGenerator.checkResult);
+            }
         } catch (Exception e) {
             e.printStackTrace();
+            if (checkChanges) {
+                System.exit(EXIT_ERROR);
+            }
         }
     }
 
     private final boolean includeVersion;
     private final File patchConfigFile;
-    private final File oldRoot;
+    private final List<File> oldRoots;
     private final File newRoot;
     private File patchFile;
     private final File previousCp;
-    private File tmp;
-
-    private PatchGenerator(File patchConfig, File oldRoot, File newRoot, File patchFile, boolean includeVersion, File previousCp) {
+    private final File stagingDir;
+    private final List<File> seedPatches;
+    private final File changedPathsFile;
+    private final boolean paranoid;
+    private final File artifactMapFile;
+    private final File localRepository;
+    private final boolean checkChanges;
+    private final boolean reportOnly;
+    private int checkResult = EXIT_ERROR;
+
+    private PatchGenerator(File patchConfig, List<File> oldRoots, File newRoot, File patchFile, boolean includeVersion, File previousCp, File stagingDir, List<File> seedPatches,
+                           File changedPathsFile, boolean paranoid, File artifactMapFile, File localRepository, boolean checkChanges,
+                           boolean reportOnly) {
         this.patchConfigFile = patchConfig;
-        this.oldRoot = oldRoot;
+        this.oldRoots = oldRoots;
         this.newRoot = newRoot;
         this.patchFile = patchFile;
         this.includeVersion = includeVersion;
         this.previousCp = previousCp;
+        this.stagingDir = stagingDir;
+        this.seedPatches = seedPatches;
+        this.changedPathsFile = changedPathsFile;
+        this.paranoid = paranoid;
+        this.artifactMapFile = artifactMapFile;
+        this.localRepository = localRepository;
+        this.checkChanges = checkChanges;
+        this.reportOnly = reportOnly;
     }
 
     private void process() throws PatchingException, IOException, XMLStreamException {
 
+        final List<File> tmpDirs = new ArrayList<File>();
+        // At least one thread per distribution, the scans mostly wait for the file system
+        final ExecutorService executor = ConcurrencyUtils.newFixedThreadPool("patch-gen", Math.max(ConcurrencyUtils.DEFAULT_THREADS, oldRoots.size() + 1));
+        final HashingService hashing = HashingService.create();
+        final PrintStream stdout = System.out;
         try {
-            PatchConfig patchConfig = parsePatchConfig();
+            final PatchConfig patchConfig = parsePatchConfig();
 
             Set<String> required = new TreeSet<>();
             if (newRoot == null) {
                 required.add(UPDATED_DIST);
             }
-            if (oldRoot == null) {
+            if (oldRoots.isEmpty()) {
                 required.add(APPLIES_TO_DIST);
             }
-            if (patchFile == null) {
+            if (patchFile == null && !checkChanges && !reportOnly) {
                 if (newRoot != null) {
                     patchFile = new File(newRoot, "patch-" + System.currentTimeMillis() + ".par");
                 } else {
@@ -118,60 +180,429 @@ public class PatchGenerator {
                 usage();
                 return;
             }
-
-            createTempStructure(patchConfig.getPatchId());
+            if (checkChanges && reportOnly) {
+                throw processingError("%s cannot be used together with %s", CHECK_CHANGES, REPORT_ONLY);
+            }
+            if (reportOnly && patchFile == null) {
+                // The report is written to stdout, keep it free of other messages
+                System.setOut(System.err);
+            }
+            final boolean matrix = oldRoots.size() > 1;
+            if (matrix && previousCp != null) {
+                throw processingError("%s cannot be used together with multiple %s", COMBINE_WITH, APPLIES_TO_DIST);
+            }
+            if (matrix && !seedPatches.isEmpty()) {
+                throw processingError("%s cannot be used together with multiple %s", SEED_HASHES_FROM, APPLIES_TO_DIST);
+            }
+            // The hashes of the base distribution known from the patches which produced it
+            final HashSeeds seeds = seedPatches.isEmpty() ? null : HashSeeds.load(seedPatches);
+            // Only hash the content known to be changed
+            final ChangedPaths changedPaths = changedPathsFile == null ? null : ChangedPaths.load(changedPathsFile, paranoid);
+            // The checksums of the updated distribution's files copied from the local repository
+            final ArtifactHashes artifacts = artifactMapFile == null ? null : ArtifactHashes.load(artifactMapFile, localRepository);
 
             // See whether to include the updated version information
-            boolean includeVersion = patchConfig.getPatchType() == Patch.PatchType.CUMULATIVE ? true : this.includeVersion;
+            final boolean includeVersion = patchConfig.getPatchType() == Patch.PatchType.CUMULATIVE ? true : this.includeVersion;
             final String[] ignored = includeVersion ? new String[0] : new String[] {"org/jboss/as/product", "org/jboss/as/version"};
+            // Only process the specified content, if the modifications are not generated by diff
+            final TargetedContent targetedContent = TargetedContent.create(patchConfig, includeVersion);
+
+            // Create the distributions concurrently, the updated distribution is only processed once for all baselines
+            final IdentityCheck check = new IdentityCheck(patchConfig, matrix);
+            // When checking for changes, nothing is hashed up front and the layers are compared while being scanned
+            final HashingService scanHashing = checkChanges ? null : hashing;
+            final LayerCheck layers = checkChanges ? new LayerCheck(patchConfig, includeVersion) : null;
+            final CompletionService<Distribution> scans = new ExecutorCompletionService<Distribution>(executor);
+            final Future<Distribution> updatedTask = scans.submit(createDistribution(newRoot, scanHashing, null, artifacts, changedPaths, targetedContent,
+                    layers == null ? check.updated() : layers.updated(check.updated()), ignored));
+            final List<Future<Distribution>> baseTasks = new ArrayList<Future<Distribution>>();
+            for (final File oldRoot : oldRoots) {
+                baseTasks.add(scans.submit(createDistribution(oldRoot, scanHashing, seeds, null, changedPaths, targetedContent,
+                        layers == null ? check.base() : layers.base(check.base()), ignored)));
+            }
+            final Distribution updated;
+            final List<Distribution> bases = new ArrayList<Distribution>();
+            try {
+                // A mismatching name or version fails as soon as either side resolved it
+                ConcurrencyUtils.awaitAll(scans, baseTasks.size() + 1);
+                updated = ConcurrencyUtils.join(updatedTask);
+                for (final Future<Distribution> baseTask : baseTasks) {
+                    bases.add(ConcurrencyUtils.join(baseTask));
+                }
 
-            // Create the distributions
-            final Distribution base = Distribution.create(oldRoot, ignored);
-            final Distribution updated = Distribution.create(newRoot, ignored);
+                if (checkChanges) {
+                    // Only determine whether there are any changes, the comparison ends at the first one
+                    for (final Distribution base : bases) {
+                        createPatch(patchConfig, base, updated, includeVersion, new ChangeProbe(base.getVersion()));
+                    }
+                    System.out.println("No changes found");
+                    checkResult = EXIT_NO_CHANGES;
+                    return;
+                }
+            } catch (ChangeFound e) {
+                System.out.println("Changes found against " + e.getBase() + ": " + e.getMessage());
+                checkResult = EXIT_CHANGES;
+                return;
+            }
 
-            if (!base.getName().equals(updated.getName())) {
-                throw processingError("distribution names don't match, expected: %s, but was %s ", base.getName(), updated.getName());
+            if (reportOnly) {
+                // Write the modifications while they are found, nothing is staged
+                final Writer writer = patchFile == null ? new OutputStreamWriter(stdout, StandardCharsets.UTF_8)
+                        : Files.newBufferedWriter(patchFile.toPath(), StandardCharsets.UTF_8);
+                try {
+                    for (final Distribution base : bases) {
+                        createPatch(patchConfig, base, updated, includeVersion, new ModificationReport(writer, base.getVersion()));
+                    }
+                } finally {
+                    if (patchFile != null) {
+                        writer.close();
+                    }
+                }
+                return;
             }
-            //
-            if (patchConfig.getAppliesToProduct() != null && ! patchConfig.getAppliesToProduct().equals(base.getName())) {
-                throw processingError("patch target does not match, expected: %s, but was %s", patchConfig.getAppliesToProduct(), base.getName());
+
+            if (!matrix) {
+                final File tmp = createTempStructure(stagingDir, patchConfig.getPatchId());
+                tmpDirs.add(tmp);
+
+                // Create the resulting patch
+                final Patch patch = createPatch(patchConfig, bases.get(0), updated, includeVersion, null);
+
+                // Copy the contents to the temp dir structure
+                PatchContentWriter.process(tmp, newRoot, patch);
+
+                if(previousCp != null) {
+                    StreamingPatchMerger.merge(previousCp, tmp, patchFile);
+                } else {
+                    ZipUtils.zip(tmp, patchFile);
+                }
+            } else {
+                // Content of the updated distribution is staged once and shared between all the generated patches
+                final File shared = createTempStructure(stagingDir, patchConfig.getPatchId() + "-content");
+                tmpDirs.add(shared);
+                final PatchContentWriter.ContentCache cache = new PatchContentWriter.ContentCache();
+
+                // The staging directory of each patch by output file
+                final Map<File, File> targets = new LinkedHashMap<File, File>();
+                final List<Callable<Void>> patches = new ArrayList<Callable<Void>>();
+                for (final Distribution base : bases) {
+                    final File target = getMatrixOutputFile(patchFile, base.getVersion());
+                    if (targets.containsKey(target)) {
+                        throw processingError("multiple %s resolve to the same version %s", APPLIES_TO_DIST, base.getVersion());
+                    }
+                    final File tmp = createTempStructure(stagingDir, patchConfig.getPatchId() + "-" + base.getVersion());
+                    tmpDirs.add(tmp);
+                    targets.put(target, tmp);
+                    patches.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            final Patch patch = createPatch(patchConfig, base, updated, includeVersion, null);
+                            PatchContentWriter.process(tmp, newRoot, patch, cache);
+                            return null;
+                        }
+                    });
+                }
+                ConcurrencyUtils.invokeAll(executor, patches);
+
+                // The shared content is only deflated once, the patches copy its compressed entries
+                final File content = new File(shared, "content.zip");
+                cache.writeArchive(content);
+                final ZipArchive archive = ZipArchive.open(content);
+                try {
+                    final List<Callable<File>> tasks = new ArrayList<Callable<File>>();
+                    for (final Map.Entry<File, File> entry : targets.entrySet()) {
+                        final File target = entry.getKey();
+                        final File tmp = entry.getValue();
+                        tasks.add(new Callable<File>() {
+                            @Override
+                            public File call() throws Exception {
+                                cache.write(tmp, archive, target);
+                                return target;
+                            }
+                        });
+                    }
+                    for (final File target : ConcurrencyUtils.invokeAll(executor, tasks)) {
+                        System.out.println("Generated " + target.getAbsolutePath());
+                    }
+                } finally {
+                    archive.close();
+                }
             }
-            //
-            if (patchConfig.getAppliesToVersion() != null && ! patchConfig.getAppliesToVersion().equals(base.getVersion())) {
-                throw processingError("patch target version does not match, expected: %s, but was %s", patchConfig.getAppliesToVersion(), base.getVersion());
+
+        } finally {
+            System.setOut(stdout);
+            hashing.shutdown();
+            executor.shutdownNow();
+            for (final File tmp : tmpDirs) {
+                IoUtils.recursiveDelete(tmp);
             }
+        }
+
+    }
+
+    private static Callable<Distribution> createDistribution(final File root, final HashingService hashing, final HashSeeds seeds, final ArtifactHashes artifacts,
+                                                             final ChangedPaths changedPaths, final TargetedContent targets,
+                                                             final Distribution.ScanListener listener, final String... ignored) {
+        return new Callable<Distribution>() {
+            @Override
+            public Distribution call() throws Exception {
+                return Distribution.create(root, hashing, seeds, artifacts, changedPaths, targets, listener, ignored);
+            }
+        };
+    }
+
+    /**
+     * Ends the comparison at the first modification, comparing the size of misc files before their hashes.
+     */
+    private static class ChangeProbe implements PatchBuilderWrapper.ModificationListener {
+
+        private final String base;
 
-            // Build the patch metadata
-            final PatchBuilderWrapper builder = patchConfig.toPatchBuilder();
-            builder.setPatchId(patchConfig.getPatchId());
-            builder.setDescription(patchConfig.getDescription());
-            builder.setOptionalPaths(patchConfig.getOptionalPaths());
-            if (patchConfig.getPatchType() == Patch.PatchType.CUMULATIVE) {
-                // CPs need to upgrade
-                if (base.getVersion().equals(updated.getVersion())) {
-                    System.out.println("WARN: cumulative patch does not upgrade version " + base.getVersion());
+        ChangeProbe(final String base) {
+            this.base = base;
+        }
+
+        @Override
+        public boolean isSizeSufficient() {
+            return true;
+        }
+
+        @Override
+        public void miscModified(final ModificationType type, final DistributionContentItem original, final DistributionContentItem updated) {
+            final DistributionContentItem item = updated != null ? updated : original;
+            throw new ChangeFound(base, String.format("%s %s %s", type, ContentType.MISC, item.getPath('/')));
+        }
+
+        @Override
+        public void moduleModified(final ModificationType type, final String layer, final boolean bundle, final DistributionModuleItem original,
+                                   final DistributionModuleItem updated) {
+            final DistributionModuleItem item = updated != null ? updated : original;
+            throw new ChangeFound(base, String.format("%s %s %s:%s in %s", type, bundle ? ContentType.BUNDLE : ContentType.MODULE, item.getName(), item.getSlot(), layer));
+        }
+    }
+
+    private static class ChangeFound extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String base;
+
+        ChangeFound(final String base, final String message) {
+            // Only used to end the comparison, no stack trace needed
+            super(message, null, false, false);
+            this.base = base;
+        }
+
+        /**
+         * Get the version of the base distribution.
+         *
+         * @return the version
+         */
+        String getBase() {
+            return base;
+        }
+    }
+
+    /**
+     * Compares the modules and bundles of each layer and add-on as soon as both distributions scanned them, on the
+     * scanning thread which completed the pair, so that a change ends the check while the distributions are still
+     * being scanned. The scanned distributions are compared completely afterwards, reusing the hashes computed here.
+     */
+    private static class LayerCheck {
+
+        private final PatchConfig patchConfig;
+        private final boolean includeVersion;
+        private final Map<String, Distribution.ProcessedLayer> updatedLayers = new HashMap<String, Distribution.ProcessedLayer>();
+        private final List<Map<String, Distribution.ProcessedLayer>> baseLayers = new ArrayList<Map<String, Distribution.ProcessedLayer>>();
+        private final List<PatchBuilderWrapper> builders = new ArrayList<PatchBuilderWrapper>();
+
+        LayerCheck(final PatchConfig patchConfig, final boolean includeVersion) {
+            this.patchConfig = patchConfig;
+            this.includeVersion = includeVersion;
+        }
+
+        Distribution.ScanListener updated(final Distribution.ScanListener identity) {
+            return new Distribution.ScanListener() {
+                @Override
+                public void identityResolved(final String name, final String version) {
+                    identity.identityResolved(name, version);
                 }
-                builder.upgradeIdentity(base.getName(), base.getVersion(), updated.getVersion());
-            } else {
-                builder.oneOffPatchIdentity(base.getName(), base.getVersion());
+
+                @Override
+                public void layerScanned(final Distribution.ProcessedLayer layer, final boolean bundles) {
+                    updatedScanned(layer, bundles);
+                }
+            };
+        }
+
+        synchronized Distribution.ScanListener base(final Distribution.ScanListener identity) {
+            final int index = baseLayers.size();
+            baseLayers.add(new HashMap<String, Distribution.ProcessedLayer>());
+            builders.add(null);
+            return new Distribution.ScanListener() {
+                @Override
+                public void identityResolved(final String name, final String version) {
+                    identity.identityResolved(name, version);
+                    // The layers are only reported after the identity of their distribution was checked
+                    final PatchBuilderWrapper builder = patchConfig.toPatchBuilder();
+                    builder.setModificationListener(new ChangeProbe(version));
+                    synchronized (LayerCheck.this) {
+                        builders.set(index, builder);
+                    }
+                }
+
+                @Override
+                public void layerScanned(final Distribution.ProcessedLayer layer, final boolean bundles) {
+                    baseScanned(index, layer, bundles);
+                }
+            };
+        }
+
+        private void updatedScanned(final Distribution.ProcessedLayer layer, final boolean bundles) {
+            final String key = getKey(layer, bundles);
+            final List<PatchBuilderWrapper> builders = new ArrayList<PatchBuilderWrapper>();
+            final List<Distribution.ProcessedLayer> originals = new ArrayList<Distribution.ProcessedLayer>();
+            synchronized (this) {
+                updatedLayers.put(key, layer);
+                for (int i = 0; i < baseLayers.size(); i++) {
+                    final Distribution.ProcessedLayer original = baseLayers.get(i).get(key);
+                    if (original != null) {
+                        builders.add(this.builders.get(i));
+                        originals.add(original);
+                    }
+                }
+            }
+            for (int i = 0; i < originals.size(); i++) {
+                builders.get(i).compareScanned(originals.get(i), layer, bundles, includeVersion);
             }
+        }
+
+        private void baseScanned(final int index, final Distribution.ProcessedLayer layer, final boolean bundles) {
+            final String key = getKey(layer, bundles);
+            final Distribution.ProcessedLayer updated;
+            final PatchBuilderWrapper builder;
+            synchronized (this) {
+                baseLayers.get(index).put(key, layer);
+                updated = updatedLayers.get(key);
+                builder = builders.get(index);
+            }
+            if (updated != null) {
+                builder.compareScanned(layer, updated, bundles, includeVersion);
+            }
+        }
 
-            // Create the resulting patch
-            final Patch patch = builder.compare(base, updated, includeVersion);
+        private static String getKey(final Distribution.ProcessedLayer layer, final boolean bundles) {
+            return (layer.isAddOn() ? "add-on:" : "layer:") + layer.getName() + (bundles ? ":bundles" : ":modules");
+        }
+    }
 
-            // Copy the contents to the temp dir structure
-            PatchContentWriter.process(tmp, newRoot, patch);
+    /**
+     * Checks the names and versions of the distributions while they are being scanned, as soon as each is resolved.
+     */
+    private static class IdentityCheck {
 
-            if(previousCp != null) {
-                PatchMerger.merge(previousCp, tmp, patchFile);
-            } else {
-                ZipUtils.zip(tmp, patchFile);
+        private final PatchConfig patchConfig;
+        private final boolean matrix;
+        private final List<String> baseNames = new ArrayList<String>();
+        private String updatedName;
+
+        IdentityCheck(final PatchConfig patchConfig, final boolean matrix) {
+            this.patchConfig = patchConfig;
+            this.matrix = matrix;
+        }
+
+        Distribution.ScanListener base() {
+            return new Distribution.ScanListener() {
+                @Override
+                public void identityResolved(final String name, final String version) {
+                    checkBase(name, version);
+                }
+
+                @Override
+                public void layerScanned(final Distribution.ProcessedLayer layer, final boolean bundles) {
+                    //
+                }
+            };
+        }
+
+        Distribution.ScanListener updated() {
+            return new Distribution.ScanListener() {
+                @Override
+                public void identityResolved(final String name, final String version) {
+                    checkUpdated(name);
+                }
+
+                @Override
+                public void layerScanned(final Distribution.ProcessedLayer layer, final boolean bundles) {
+                    //
+                }
+            };
+        }
+
+        synchronized void checkBase(final String name, final String version) {
+            if (updatedName != null) {
+                checkNames(name, updatedName);
             }
+            //
+            if (patchConfig.getAppliesToProduct() != null && ! patchConfig.getAppliesToProduct().equals(name)) {
+                throw processingError("patch target does not match, expected: %s, but was %s", patchConfig.getAppliesToProduct(), name);
+            }
+            // Each baseline of a matrix determines its own target version
+            if (!matrix && patchConfig.getAppliesToVersion() != null && ! patchConfig.getAppliesToVersion().equals(version)) {
+                throw processingError("patch target version does not match, expected: %s, but was %s", patchConfig.getAppliesToVersion(), version);
+            }
+            baseNames.add(name);
+        }
 
-        } finally {
-            IoUtils.recursiveDelete(tmp);
+        synchronized void checkUpdated(final String name) {
+            for (final String baseName : baseNames) {
+                checkNames(baseName, name);
+            }
+            updatedName = name;
         }
 
+        private static void checkNames(final String baseName, final String updatedName) {
+            if (!baseName.equals(updatedName)) {
+                throw processingError("distribution names don't match, expected: %s, but was %s ", baseName, updatedName);
+            }
+        }
+    }
+
+    private static Patch createPatch(final PatchConfig patchConfig, final Distribution base, final Distribution updated, final boolean includeVersion,
+                                     final PatchBuilderWrapper.ModificationListener listener) {
+        // Build the patch metadata
+        final PatchBuilderWrapper builder = patchConfig.toPatchBuilder();
+        builder.setModificationListener(listener);
+        builder.setPatchId(patchConfig.getPatchId());
+        builder.setDescription(patchConfig.getDescription());
+        builder.setOptionalPaths(patchConfig.getOptionalPaths());
+        if (patchConfig.getPatchType() == Patch.PatchType.CUMULATIVE) {
+            // CPs need to upgrade
+            if (base.getVersion().equals(updated.getVersion())) {
+                System.out.println("WARN: cumulative patch does not upgrade version " + base.getVersion());
+            }
+            builder.upgradeIdentity(base.getName(), base.getVersion(), updated.getVersion());
+        } else {
+            builder.oneOffPatchIdentity(base.getName(), base.getVersion());
+        }
+
+        // Create the resulting patch
+        return builder.compare(base, updated, includeVersion);
+    }
+
+    /**
+     * Get the output file for one baseline of a multi-baseline generation, e.g. {@code cp.zip} becomes
+     * {@code cp-7.4.1.zip} for the {@code 7.4.1} baseline.
+     *
+     * @param patchFile   the configured output file
+     * @param baseVersion the version of the baseline
+     * @return the output file
+     */
+    static File getMatrixOutputFile(final File patchFile, final String baseVersion) {
+        final String name = patchFile.getName();
+        final int i = name.lastIndexOf('.');
+        final String fileName = i > 0 ? name.substring(0, i) + "-" + baseVersion + name.substring(i) : name + "-" + baseVersion;
+        return new File(patchFile.getAbsoluteFile().getParentFile(), fileName);
     }
 
     private PatchConfig parsePatchConfig() throws FileNotFoundException, XMLStreamException {
@@ -185,9 +616,10 @@ public class PatchGenerator {
         }
     }
 
-    private void createTempStructure(String patchId) {
+    private static File createTempStructure(File stagingDir, String patchId) {
 
-        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        File tmpDir = stagingDir != null ? stagingDir : new File(System.getProperty("java.io.tmpdir"));
+        File tmp = null;
         int count = 0;
         while (tmp == null || tmp.exists()) {
             count++;
@@ -203,16 +635,27 @@ public class PatchGenerator {
         File misc = new File(tmp, "misc");
         misc.mkdir();
         misc.deleteOnExit();
+        return tmp;
     }
 
     private static PatchGenerator parse(String[] args) throws Exception {
 
         File patchConfig = null;
-        File oldFile = null;
+        final List<File> oldFiles = new ArrayList<File>();
         File newFile = null;
         File patchFile = null;
         boolean includeVersion = false;
         File combineWith = null;
+        File stagingDir = null;
+        boolean seedHashes = false;
+        File changedPaths = null;
+        boolean paranoid = false;
+        boolean checkChanges = false;
+        boolean reportOnly = false;
+        File manifestRoot = null;
+        File artifactMap = null;
+        File localRepository = new File(System.getProperty("user.home"), ".m2" + File.separator + "repository");
+        final List<File> seedPatches = new ArrayList<File>();
 
         final int argsLength = args.length;
         for (int i = 0; i < argsLength; i++) {
@@ -229,15 +672,18 @@ public class PatchGenerator {
                     return null;
                 } else if (arg.startsWith(APPLIES_TO_DIST)) {
                     String val = arg.substring(APPLIES_TO_DIST.length() + 1);
-                    oldFile = new File(val);
-                    if (!oldFile.exists()) {
-                        System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
-                        usage();
-                        return null;
-                    } else if (!oldFile.isDirectory()) {
-                        System.err.printf(PatchGenLogger.fileIsNotADirectory(arg));
-                        usage();
-                        return null;
+                    for (final String path : val.split(File.pathSeparator)) {
+                        final File oldFile = new File(path);
+                        if (!oldFile.exists()) {
+                            System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
+                            usage();
+                            return null;
+                        } else if (!oldFile.isDirectory()) {
+                            System.err.printf(PatchGenLogger.fileIsNotADirectory(arg));
+                            usage();
+                            return null;
+                        }
+                        oldFiles.add(oldFile);
                     }
                 } else if (arg.startsWith(UPDATED_DIST)) {
                     String val = arg.substring(UPDATED_DIST.length() + 1);
@@ -281,6 +727,18 @@ public class PatchGenerator {
                 } else if (arg.equals(ASSEMBLE_PATCH_BUNDLE)) {
                     PatchBundleGenerator.assemble(args);
                     return null;
+                } else if (arg.startsWith(CREATE_MANIFEST)) {
+                    String val = arg.substring(CREATE_MANIFEST.length() + 1);
+                    manifestRoot = new File(val);
+                    if (!manifestRoot.exists()) {
+                        System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
+                        usage();
+                        return null;
+                    } else if (!manifestRoot.isDirectory()) {
+                        System.err.printf(PatchGenLogger.fileIsNotADirectory(arg));
+                        usage();
+                        return null;
+                    }
                 } else if (arg.startsWith(COMBINE_WITH)) {
                     String val = arg.substring(COMBINE_WITH.length() + 1);
                     combineWith = new File(val);
@@ -289,6 +747,77 @@ public class PatchGenerator {
                         usage();
                         return null;
                     }
+                } else if (arg.startsWith(SEED_HASHES_FROM)) {
+                    String val = arg.substring(SEED_HASHES_FROM.length() + 1);
+                    for (final String path : val.split(File.pathSeparator)) {
+                        final File seedPatch = new File(path);
+                        if (!seedPatch.exists()) {
+                            System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
+                            usage();
+                            return null;
+                        } else if (seedPatch.isDirectory()) {
+                            System.err.printf(PatchGenLogger.fileIsADirectory(arg));
+                            usage();
+                            return null;
+                        }
+                        seedPatches.add(seedPatch);
+                    }
+                } else if (arg.equals(SEED_HASHES)) {
+                    seedHashes = true;
+                } else if (arg.startsWith(CHANGED_PATHS)) {
+                    String val = arg.substring(CHANGED_PATHS.length() + 1);
+                    changedPaths = new File(val);
+                    if (!changedPaths.exists()) {
+                        System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
+                        usage();
+                        return null;
+                    } else if (changedPaths.isDirectory()) {
+                        System.err.printf(PatchGenLogger.fileIsADirectory(arg));
+                        usage();
+                        return null;
+                    }
+                } else if (arg.equals(PARANOID)) {
+                    paranoid = true;
+                } else if (arg.equals(CHECK_CHANGES)) {
+                    checkChanges = true;
+                } else if (arg.equals(REPORT_ONLY)) {
+                    reportOnly = true;
+                } else if (arg.startsWith(ARTIFACT_MAP)) {
+                    String val = arg.substring(ARTIFACT_MAP.length() + 1);
+                    artifactMap = new File(val);
+                    if (!artifactMap.exists()) {
+                        System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
+                        usage();
+                        return null;
+                    } else if (artifactMap.isDirectory()) {
+                        System.err.printf(PatchGenLogger.fileIsADirectory(arg));
+                        usage();
+                        return null;
+                    }
+                } else if (arg.startsWith(LOCAL_REPOSITORY)) {
+                    String val = arg.substring(LOCAL_REPOSITORY.length() + 1);
+                    localRepository = new File(val);
+                    if (!localRepository.exists()) {
+                        System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
+                        usage();
+                        return null;
+                    } else if (!localRepository.isDirectory()) {
+                        System.err.printf(PatchGenLogger.fileIsNotADirectory(arg));
+                        usage();
+                        return null;
+                    }
+                } else if (arg.startsWith(STAGING_DIR)) {
+                    String val = arg.substring(STAGING_DIR.length() + 1);
+                    stagingDir = new File(val);
+                    if (!stagingDir.exists()) {
+                        System.err.printf(PatchLogger.ROOT_LOGGER.fileDoesNotExist(arg));
+                        usage();
+                        return null;
+                    } else if (!stagingDir.isDirectory()) {
+                        System.err.printf(PatchGenLogger.fileIsNotADirectory(arg));
+                        usage();
+                        return null;
+                    }
                 }
             } catch (IndexOutOfBoundsException e) {
                 System.err.printf(PatchGenLogger.argumentExpected(arg));
@@ -297,13 +826,30 @@ public class PatchGenerator {
             }
         }
 
+        if (manifestRoot != null) {
+            // Handled after all arguments, the recorded comparison hashes depend on them
+            final File manifest = DistributionManifest.create(manifestRoot);
+            System.out.println("Created " + manifest.getAbsolutePath());
+            return null;
+        }
+
         if (patchConfig == null) {
             System.err.printf(PatchGenLogger.missingRequiredArgs(Collections.singleton(PATCH_CONFIG)));
             usage();
             return null;
         }
 
-        return new PatchGenerator(patchConfig, oldFile, newFile, patchFile, includeVersion, combineWith);
+        if (seedHashes) {
+            if (combineWith == null) {
+                System.err.printf(PatchGenLogger.missingRequiredArgs(Collections.singleton(COMBINE_WITH)));
+                usage();
+                return null;
+            }
+            // The previous CP is the last patch applied to the base distribution
+            seedPatches.add(combineWith);
+        }
+
+        return new PatchGenerator(patchConfig, oldFiles, newFile, patchFile, includeVersion, combineWith, stagingDir, seedPatches, changedPaths, paranoid, artifactMap, localRepository, checkChanges, reportOnly);
     }
 
     private static void usage() {
@@ -311,7 +857,8 @@ public class PatchGenerator {
         Usage usage = new Usage();
 
         usage.addArguments(APPLIES_TO_DIST + "=<file>");
-        usage.addInstruction("Filesystem path of a pristine unzip of the distribution of the version of the software to which the generated patch applies");
+        usage.addInstruction("Filesystem path of a pristine unzip of the distribution of the version of the software to which the generated patch applies. "
+                + "Multiple distributions separated by '" + File.pathSeparator + "' generate one patch per distribution, named after the output file with the version of each distribution appended");
 
         usage.addArguments("-h", "--help");
         usage.addInstruction("Display this message and exit");
@@ -334,6 +881,41 @@ public class PatchGenerator {
         usage.addArguments(COMBINE_WITH + "=<file>");
         usage.addInstruction("Filesystem path of the previous CP to be included into the same package with the newly generated one");
 
+        usage.addArguments(CHANGED_PATHS + "=<file>");
+        usage.addInstruction("Filesystem path of a file listing the paths known to be changed, one path relative to the distribution root per line. "
+                + "Only listed content and content with a different size is hashed, other content is trusted to be unchanged");
+
+        usage.addArguments(PARANOID);
+        usage.addInstruction("Compare a random sample of the content trusted to be unchanged by " + CHANGED_PATHS + " as well, failing if it changed");
+
+        usage.addArguments(CHECK_CHANGES);
+        usage.addInstruction("Only check whether the updated distribution differs from the distribution the patch applies to, stopping at the first change. "
+                + "Exits with 0 if there are no changes, 1 if there are changes and 2 on errors");
+
+        usage.addArguments(REPORT_ONLY);
+        usage.addInstruction("Only report the changes instead of generating a patch, as JSON Lines written to the output file or, if not specified, to the standard output");
+
+        usage.addArguments(ARTIFACT_MAP + "=<file>");
+        usage.addInstruction("Filesystem path of a file mapping files of the updated distribution to Maven artifacts, one <path>=<groupId>:<artifactId>[:<extension>[:<classifier>]]:<version> per line. "
+                + "The .sha1 checksum of an artifact of the same size in the local repository is used instead of hashing the file");
+
+        usage.addArguments(LOCAL_REPOSITORY + "=<file>");
+        usage.addInstruction("Filesystem path of the local Maven repository used by " + ARTIFACT_MAP + ". Defaults to ~/.m2/repository");
+
+        usage.addArguments(SEED_HASHES);
+        usage.addInstruction("Use the hashes recorded in the patch.xml of the previous CP for the content of the applies-to distribution instead of hashing it. Requires " + COMBINE_WITH);
+
+        usage.addArguments(SEED_HASHES_FROM + "=<file>");
+        usage.addInstruction("Filesystem paths of the patches, or their patch.xml, which produced the applies-to distribution, separated by '" + File.pathSeparator + "' in the order they were applied. "
+                + "The hashes they recorded are used for the content of the applies-to distribution instead of hashing it");
+
+        usage.addArguments(CREATE_MANIFEST + "=<file>");
+        usage.addInstruction("Filesystem path of a distribution to record the hashes of its content in " + DistributionManifest.FILE_NAME
+                + " at its root, which are trusted instead of hashing unchanged content again, and exit");
+
+        usage.addArguments(STAGING_DIR + "=<file>");
+        usage.addInstruction("Filesystem path of an existing directory, e.g. on tmpfs, in which the patch content is staged. Defaults to java.io.tmpdir");
+
         String headline = usage.getDefaultUsageHeadline("patch-gen");
         System.out.print(usage.usage(headline));
 
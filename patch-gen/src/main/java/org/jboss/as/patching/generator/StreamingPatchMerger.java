@@ -0,0 +1,268 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenerator.processingError;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.jboss.as.patching.IoUtils;
+import org.jboss.as.patching.PatchingException;
+import org.jboss.as.patching.metadata.ContentItem;
+import org.jboss.as.patching.metadata.ContentModification;
+import org.jboss.as.patching.metadata.ModificationType;
+import org.jboss.as.patching.metadata.Patch;
+import org.jboss.as.patching.metadata.PatchElement;
+import org.jboss.as.patching.metadata.PatchElementProvider;
+import org.jboss.as.patching.metadata.PatchMerger;
+import org.jboss.as.patching.metadata.PatchXml;
+import org.jboss.as.patching.runner.PatchContentLoader;
+
+/**
+ * Combines a previous CP with a newly generated patch, producing the same layout as {@link PatchMerger}, without
+ * extracting the previous CP.
+ * <p/>
+ * Only the metadata is rewritten. Content modified by the new patch is added from the staged patch directory, all
+ * other content is copied as raw compressed bytes from the previous CP, renamed to the ids of the merged patch. Falls
+ * back to {@link PatchMerger} for archives which cannot be copied raw, or when the {@code patch.gen.merge.streaming}
+ * system property is set to {@code false}.
+ */
+class StreamingPatchMerger {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("patch.gen.merge.streaming", "true"));
+
+    private final ZipArchive previous;
+    private final File patchDir;
+
+    private StreamingPatchMerger(final ZipArchive previous, final File patchDir) {
+        this.previous = previous;
+        this.patchDir = patchDir;
+    }
+
+    /**
+     * Merge a previous CP with a new patch.
+     *
+     * @param previousCp the previous CP
+     * @param patchDir   the staged content of the new patch
+     * @param result     the resulting patch file
+     * @throws IOException
+     * @throws PatchingException
+     * @throws XMLStreamException
+     */
+    static void merge(final File previousCp, final File patchDir, final File result) throws IOException, PatchingException, XMLStreamException {
+        if (!ENABLED || previousCp.isDirectory()) {
+            PatchMerger.merge(previousCp, patchDir, result);
+            return;
+        }
+        final ZipArchive previous;
+        try {
+            previous = ZipArchive.open(previousCp);
+        } catch (ZipArchive.UnsupportedArchiveException e) {
+            System.out.println("WARN: " + e.getMessage() + ", extracting the previous patch instead");
+            PatchMerger.merge(previousCp, patchDir, result);
+            return;
+        }
+        boolean success = false;
+        try {
+            new StreamingPatchMerger(previous, patchDir).write(result);
+            success = true;
+        } finally {
+            IoUtils.safeClose(previous);
+            if (!success) {
+                result.delete();
+            }
+        }
+    }
+
+    private void write(final File result) throws IOException, PatchingException, XMLStreamException {
+
+        final Patch patch2 = PatchXml.parse(new File(patchDir, PatchXml.PATCH_XML)).resolvePatch(null, null);
+        final String patch2Xml = patch2.getIdentity().getVersion() + PatchMerger.PATCH_XML_SUFFIX;
+
+        final ZipArchiveWriter writer = new ZipArchiveWriter(result);
+        try {
+            final Patch patch1;
+            final ZipFile zipFile = new ZipFile(previous.getFile());
+            try {
+                patch1 = parsePatch(zipFile, PatchXml.PATCH_XML);
+                final Patch merged = PatchMerger.merge(patch1, patch2);
+
+                // The merged metadata and the metadata of the new patch for its applies-to version
+                writer.addEntry(PatchXml.PATCH_XML, marshal(merged));
+                writer.addEntry(patch2Xml, Files.readAllBytes(new File(patchDir, PatchXml.PATCH_XML).toPath()));
+
+                // The version specific metadata of the previous CP, updated with the new patch
+                for (final ZipArchive.Entry entry : previous.getEntries()) {
+                    final String name = entry.getName();
+                    if (name.indexOf('/') == -1 && name.endsWith(PatchMerger.PATCH_XML_SUFFIX) && !name.equals(patch2Xml)) {
+                        writer.addEntry(name, marshal(PatchMerger.merge(parsePatch(zipFile, name), patch2)));
+                    }
+                }
+
+                // Root content of the new patch, e.g. the README
+                final Set<String> contentRoots = new HashSet<String>();
+                contentRoots.add(patch2.getPatchId());
+                for (final PatchElement element : patch2.getElements()) {
+                    contentRoots.add(element.getId());
+                }
+                final String[] children = patchDir.list();
+                if (children != null) {
+                    Arrays.sort(children);
+                    for (final String child : children) {
+                        if (!PatchXml.PATCH_XML.equals(child) && !contentRoots.contains(child)) {
+                            writer.addTree(child, new File(patchDir, child));
+                        }
+                    }
+                }
+
+                // Misc content
+                writeContent(writer, merged.getPatchId(), merged.getModifications(), patch1.getPatchId(), patch2.getPatchId(), patch2.getModifications());
+
+                // Layers and add-ons
+                final Map<String, PatchElement> elements1 = getElements(patch1);
+                final Map<String, PatchElement> elements2 = getElements(patch2);
+                for (final PatchElement element : merged.getElements()) {
+                    final PatchElement element1 = elements1.get(getKey(element.getProvider()));
+                    final PatchElement element2 = elements2.get(getKey(element.getProvider()));
+                    writeContent(writer, element.getId(), element.getModifications(),
+                            element1 == null ? null : element1.getId(),
+                            element2 == null ? null : element2.getId(),
+                            element2 == null ? Collections.<ContentModification>emptyList() : element2.getModifications());
+                }
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the content of the merged modifications, preferring the content of the new patch.
+     *
+     * @param writer        the writer
+     * @param targetId      the id of the merged patch or element
+     * @param modifications the merged modifications
+     * @param previousId    the id of the patch or element of the previous CP, or {@code null}
+     * @param newId         the id of the patch or element of the new patch, or {@code null}
+     * @param newModifications the modifications of the new patch
+     * @throws IOException
+     */
+    private void writeContent(final ZipArchiveWriter writer, final String targetId, final List<ContentModification> modifications,
+                              final String previousId, final String newId, final List<ContentModification> newModifications) throws IOException {
+        final Set<String> updated = new HashSet<String>();
+        for (final ContentModification modification : newModifications) {
+            if (modification.getType() != ModificationType.REMOVE) {
+                updated.add(getRelativePath(modification.getItem()));
+            }
+        }
+        for (final ContentModification modification : modifications) {
+            if (modification.getType() == ModificationType.REMOVE) {
+                continue;
+            }
+            final String path = getRelativePath(modification.getItem());
+            final String target = targetId + "/" + path;
+            if (updated.contains(path)) {
+                final File source = new File(new File(patchDir, newId), path.replace('/', File.separatorChar));
+                if (!source.exists()) {
+                    throw processingError("source item does not exist %s", source.getAbsolutePath());
+                }
+                writer.addTree(target, source);
+            } else {
+                final String prefix = previousId + "/" + path;
+                final List<ZipArchive.Entry> entries = previousId == null ? Collections.<ZipArchive.Entry>emptyList() : previous.getEntries(prefix);
+                if (entries.isEmpty()) {
+                    throw processingError("content of %s not found in %s", modification.getItem(), previous.getFile().getAbsolutePath());
+                }
+                for (final ZipArchive.Entry entry : entries) {
+                    writer.copy(previous, entry, target + entry.getName().substring(prefix.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the path of the content of an item, relative to the patch or element root.
+     */
+    private String getRelativePath(final ContentItem item) throws IOException {
+        final File file = PatchContentLoader.create(patchDir).getFile(item);
+        final Path relative = patchDir.toPath().relativize(file.toPath());
+        final StringBuilder builder = new StringBuilder();
+        for (final Path segment : relative) {
+            if (builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(segment.toString());
+        }
+        return builder.toString();
+    }
+
+    private static Map<String, PatchElement> getElements(final Patch patch) {
+        final Map<String, PatchElement> elements = new HashMap<String, PatchElement>();
+        for (final PatchElement element : patch.getElements()) {
+            elements.put(getKey(element.getProvider()), element);
+        }
+        return elements;
+    }
+
+    private static String getKey(final PatchElementProvider provider) {
+        return (provider.isAddOn() ? "add-on:" : "layer:") + provider.getName();
+    }
+
+    private static Patch parsePatch(final ZipFile zipFile, final String name) throws IOException, PatchingException, XMLStreamException {
+        final ZipEntry entry = zipFile.getEntry(name);
+        if (entry == null) {
+            throw processingError("%s not found in %s", name, zipFile.getName());
+        }
+        final InputStream is = zipFile.getInputStream(entry);
+        try {
+            return PatchXml.parse(is).resolvePatch(null, null);
+        } finally {
+            IoUtils.safeClose(is);
+        }
+    }
+
+    private static byte[] marshal(final Patch patch) throws XMLStreamException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PatchXml.marshal(os, patch);
+        return os.toByteArray();
+    }
+
+}
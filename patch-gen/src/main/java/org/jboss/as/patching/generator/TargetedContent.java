@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jboss.as.patching.metadata.ContentItem;
+import org.jboss.as.patching.metadata.ContentType;
+import org.jboss.as.patching.metadata.MiscContentItem;
+import org.jboss.as.patching.metadata.ModuleItem;
+
+/**
+ * The content a patch config without {@code <generate-by-diff>} can contain, so that only this content needs to be
+ * scanned and hashed. Everything else would be filtered from the patch anyway.
+ * <p/>
+ * The specified modules and bundles are resolved in every layer and add-on, the specified misc paths relative to the
+ * distribution root. The structure of the layers is still processed, to resolve the distribution name and version.
+ * Enabled by default, can be disabled using the {@code patch.gen.targeted} system property.
+ */
+class TargetedContent {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("patch.gen.targeted", "true"));
+
+    private static final String VERSION_MODULE = "org.jboss.as.version";
+
+    private final Set<String> modules = new TreeSet<String>();
+    private final Set<String> bundles = new TreeSet<String>();
+    private final NavigableSet<String> misc = new TreeSet<String>();
+
+    /**
+     * Create the targeted content of a patch config.
+     *
+     * @param config         the patch config
+     * @param includeVersion whether the version module is included in the patch
+     * @return the targeted content, {@code null} if the modifications are generated by diff
+     */
+    static TargetedContent create(final PatchConfig config, final boolean includeVersion) {
+        if (!ENABLED || config.isGenerateByDiff()) {
+            return null;
+        }
+        final TargetedContent targets = new TargetedContent();
+        targets.addAll(config.getSpecifiedContent());
+        for (final PatchElementConfig element : config.getElements()) {
+            targets.addAll(element.getSpecifiedContent());
+        }
+        if (includeVersion) {
+            targets.modules.add(getPath(VERSION_MODULE, ModuleItem.MAIN_SLOT));
+        }
+        return targets;
+    }
+
+    private void addAll(final Collection<ContentItem> items) {
+        for (final ContentItem item : items) {
+            if (item.getContentType() == ContentType.MISC) {
+                final MiscContentItem miscItem = (MiscContentItem) item;
+                final StringBuilder path = new StringBuilder();
+                for (final String element : miscItem.getPath()) {
+                    path.append(element).append('/');
+                }
+                misc.add(path.append(miscItem.getName()).toString());
+            } else {
+                final ModuleItem moduleItem = (ModuleItem) item;
+                final String path = getPath(moduleItem.getName(), moduleItem.getSlot());
+                if (item.getContentType() == ContentType.BUNDLE) {
+                    bundles.add(path);
+                } else {
+                    modules.add(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the paths of the modules relative to a layer or add-on.
+     *
+     * @return the module paths
+     */
+    Set<String> getModulePaths() {
+        return modules;
+    }
+
+    /**
+     * Get the paths of the bundles relative to a layer or add-on.
+     *
+     * @return the bundle paths
+     */
+    Set<String> getBundlePaths() {
+        return bundles;
+    }
+
+    /**
+     * Whether a misc path needs to be scanned, because it is specified, is contained in a specified directory or
+     * contains specified content.
+     *
+     * @param path the path relative to the distribution root
+     * @return {@code true} if the path needs to be scanned
+     */
+    boolean isTargeted(final String path) {
+        return ChangedPaths.matches(misc, path);
+    }
+
+    private static String getPath(final String name, final String slot) {
+        return name.replace('.', '/') + '/' + slot;
+    }
+
+}
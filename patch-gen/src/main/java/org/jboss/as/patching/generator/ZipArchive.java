@@ -0,0 +1,393 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Read-only view of a zip archive based on its central directory, giving access to the raw compressed content of the
+ * entries so that they can be copied into another archive without inflating and deflating them again.
+ * <p/>
+ * Only what {@link java.util.zip.ZipOutputStream} produces for patches is supported, archives using zip64 extensions,
+ * encryption or multiple disks are rejected with an {@link UnsupportedArchiveException}.
+ */
+class ZipArchive implements Closeable {
+
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+    static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    static final int LOCAL_HEADER_LENGTH = 30;
+    static final int CENTRAL_HEADER_LENGTH = 46;
+    static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+
+    static final int FLAG_ENCRYPTED = 0x0001;
+    static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final int FLAG_UTF8 = 0x0800;
+
+    static final long MAX_VALUE = 0xFFFFFFFFL;
+    static final int MAX_ENTRIES = 0xFFFF;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final NavigableMap<String, Entry> entriesByName;
+    private final long centralDirectoryOffset;
+
+    private ZipArchive(final File file, final FileChannel channel, final List<Entry> entries, final long centralDirectoryOffset) {
+        this.file = file;
+        this.channel = channel;
+        this.entries = Collections.unmodifiableList(entries);
+        this.entriesByName = new TreeMap<String, Entry>();
+        for (final Entry entry : entries) {
+            entriesByName.put(entry.getName(), entry);
+        }
+        this.centralDirectoryOffset = centralDirectoryOffset;
+    }
+
+    /**
+     * Open an archive and read its central directory.
+     *
+     * @param file the archive
+     * @return the archive
+     * @throws IOException
+     */
+    static ZipArchive open(final File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final ZipArchive archive = readCentralDirectory(file, channel);
+            if (archive == null) {
+                throw new UnsupportedArchiveException(file, "no end of central directory record");
+            }
+            return archive;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the entries in the order of the central directory.
+     *
+     * @return the entries
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    Entry getEntry(final String name) {
+        return entriesByName.get(name);
+    }
+
+    /**
+     * Get an entry and, in case it is a directory, all the entries below it.
+     *
+     * @param name the entry name, without a trailing {@code /}
+     * @return the entries, sorted by name
+     */
+    List<Entry> getEntries(final String name) {
+        final List<Entry> result = new ArrayList<Entry>();
+        final Entry entry = entriesByName.get(name);
+        if (entry != null) {
+            result.add(entry);
+        }
+        // '0' follows '/', this selects all names with the directory prefix
+        result.addAll(entriesByName.subMap(name + '/', true, name + '0', false).values());
+        return result;
+    }
+
+    /**
+     * Get the offset of the central directory, which is also where the content of the last entry ends.
+     *
+     * @return the offset
+     */
+    long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    /**
+     * Get the offset at which the compressed content of an entry starts.
+     *
+     * @param entry the entry
+     * @return the offset
+     * @throws IOException
+     */
+    long getDataOffset(final Entry entry) throws IOException {
+        final ByteBuffer header = read(channel, entry.getLocalHeaderOffset(), LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new IOException("invalid local header for " + entry.getName() + " in " + file.getAbsolutePath());
+        }
+        final int nameLength = header.getShort(26) & 0xFFFF;
+        final int extraLength = header.getShort(28) & 0xFFFF;
+        return entry.getLocalHeaderOffset() + LOCAL_HEADER_LENGTH + nameLength + extraLength;
+    }
+
+    /**
+     * Copy the raw, still compressed, content of an entry.
+     *
+     * @param entry  the entry
+     * @param target the target channel
+     * @throws IOException
+     */
+    void transferTo(final Entry entry, final WritableByteChannel target) throws IOException {
+        transfer(channel, getDataOffset(entry), entry.getCompressedSize(), target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static void transfer(final FileChannel source, final long offset, final long length, final WritableByteChannel target) throws IOException {
+        long position = offset;
+        final long end = offset + length;
+        while (position < end) {
+            final long transferred = source.transferTo(position, end - position, target);
+            if (transferred <= 0 && position >= source.size()) {
+                throw new IOException("unexpected end of file");
+            }
+            position += transferred;
+        }
+    }
+
+    static ByteBuffer read(final FileChannel channel, final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ZipArchive readCentralDirectory(final File file, final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size < END_OF_CENTRAL_DIRECTORY_LENGTH) {
+            return null;
+        }
+        // The end of central directory record is followed by a comment of at most 64k
+        final int tailLength = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_LENGTH + 0xFFFF);
+        final long tailOffset = size - tailLength;
+        final ByteBuffer tail = read(channel, tailOffset, tailLength);
+        for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) != END_OF_CENTRAL_DIRECTORY
+                    || i + END_OF_CENTRAL_DIRECTORY_LENGTH + (tail.getShort(i + 20) & 0xFFFF) != tailLength) {
+                continue;
+            }
+            if (i >= 20 && tail.getInt(i - 20) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR) {
+                throw new UnsupportedArchiveException(file, "zip64");
+            }
+            final int disk = tail.getShort(i + 4) & 0xFFFF;
+            final int centralDirectoryDisk = tail.getShort(i + 6) & 0xFFFF;
+            final int count = tail.getShort(i + 10) & 0xFFFF;
+            final long centralDirectorySize = tail.getInt(i + 12) & MAX_VALUE;
+            final long centralDirectoryOffset = tail.getInt(i + 16) & MAX_VALUE;
+            if (disk != 0 || centralDirectoryDisk != 0) {
+                throw new UnsupportedArchiveException(file, "multiple disks");
+            }
+            if (count == MAX_ENTRIES || centralDirectorySize == MAX_VALUE || centralDirectoryOffset == MAX_VALUE) {
+                throw new UnsupportedArchiveException(file, "zip64");
+            }
+            if (centralDirectoryOffset + centralDirectorySize > tailOffset + i) {
+                throw new IOException("invalid central directory in " + file.getAbsolutePath());
+            }
+            final ByteBuffer centralDirectory = read(channel, centralDirectoryOffset, (int) centralDirectorySize);
+            final List<Entry> entries = new ArrayList<Entry>(count);
+            for (int n = 0; n < count; n++) {
+                entries.add(readCentralHeader(file, centralDirectory));
+            }
+            return new ZipArchive(file, channel, entries, centralDirectoryOffset);
+        }
+        return null;
+    }
+
+    private static Entry readCentralHeader(final File file, final ByteBuffer buffer) throws IOException {
+        final int offset = buffer.position();
+        if (buffer.remaining() < CENTRAL_HEADER_LENGTH || buffer.getInt(offset) != CENTRAL_HEADER) {
+            throw new IOException("invalid central directory in " + file.getAbsolutePath());
+        }
+        final int versionMadeBy = buffer.getShort(offset + 4) & 0xFFFF;
+        final int versionNeeded = buffer.getShort(offset + 6) & 0xFFFF;
+        final int flags = buffer.getShort(offset + 8) & 0xFFFF;
+        final int method = buffer.getShort(offset + 10) & 0xFFFF;
+        final int time = buffer.getInt(offset + 12);
+        final long crc = buffer.getInt(offset + 16) & MAX_VALUE;
+        final long compressedSize = buffer.getInt(offset + 20) & MAX_VALUE;
+        final long size = buffer.getInt(offset + 24) & MAX_VALUE;
+        final int nameLength = buffer.getShort(offset + 28) & 0xFFFF;
+        final int extraLength = buffer.getShort(offset + 30) & 0xFFFF;
+        final int commentLength = buffer.getShort(offset + 32) & 0xFFFF;
+        final int externalAttributes = buffer.getInt(offset + 38);
+        final long localHeaderOffset = buffer.getInt(offset + 42) & MAX_VALUE;
+        if ((flags & FLAG_ENCRYPTED) != 0) {
+            throw new UnsupportedArchiveException(file, "encryption");
+        }
+        if (compressedSize == MAX_VALUE || size == MAX_VALUE || localHeaderOffset == MAX_VALUE) {
+            throw new UnsupportedArchiveException(file, "zip64");
+        }
+        final byte[] name = new byte[nameLength];
+        buffer.position(offset + CENTRAL_HEADER_LENGTH);
+        buffer.get(name);
+        buffer.position(offset + CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength);
+        // java.util.zip reads and writes UTF-8 names, regardless of the flag
+        return new Entry(new String(name, UTF_8), versionMadeBy, versionNeeded, flags, method,
+                time, crc, compressedSize, size, externalAttributes, localHeaderOffset);
+    }
+
+    /**
+     * An entry of the central directory.
+     */
+    static class Entry {
+
+        private final String name;
+        private final int versionMadeBy;
+        private final int versionNeeded;
+        private final int flags;
+        private final int method;
+        private final int time;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final int externalAttributes;
+        private final long localHeaderOffset;
+
+        Entry(String name, int versionMadeBy, int versionNeeded, int flags, int method, int time, long crc,
+              long compressedSize, long size, int externalAttributes, long localHeaderOffset) {
+            this.name = name;
+            this.versionMadeBy = versionMadeBy;
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.externalAttributes = externalAttributes;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        int getVersionMadeBy() {
+            return versionMadeBy;
+        }
+
+        int getVersionNeeded() {
+            return versionNeeded;
+        }
+
+        int getFlags() {
+            return flags;
+        }
+
+        int getMethod() {
+            return method;
+        }
+
+        int getTime() {
+            return time;
+        }
+
+        long getCrc() {
+            return crc;
+        }
+
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        int getExternalAttributes() {
+            return externalAttributes;
+        }
+
+        long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        /**
+         * Create a copy of this entry, using a different name and location.
+         *
+         * @param name              the name
+         * @param localHeaderOffset the offset of the local header
+         * @return the entry
+         */
+        Entry relocate(final String name, final long localHeaderOffset) {
+            return new Entry(name, versionMadeBy, versionNeeded, flags, method, time, crc, compressedSize, size,
+                    externalAttributes, localHeaderOffset);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Thrown for archives which cannot be processed without inflating their content.
+     */
+    static class UnsupportedArchiveException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedArchiveException(final File file, final String feature) {
+            super(file.getAbsolutePath() + " uses unsupported zip feature: " + feature);
+        }
+    }
+
+}
@@ -0,0 +1,421 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.ZipArchive.CENTRAL_HEADER;
+import static org.jboss.as.patching.generator.ZipArchive.CENTRAL_HEADER_LENGTH;
+import static org.jboss.as.patching.generator.ZipArchive.DATA_DESCRIPTOR;
+import static org.jboss.as.patching.generator.ZipArchive.END_OF_CENTRAL_DIRECTORY;
+import static org.jboss.as.patching.generator.ZipArchive.END_OF_CENTRAL_DIRECTORY_LENGTH;
+import static org.jboss.as.patching.generator.ZipArchive.FLAG_DATA_DESCRIPTOR;
+import static org.jboss.as.patching.generator.ZipArchive.FLAG_UTF8;
+import static org.jboss.as.patching.generator.ZipArchive.LOCAL_HEADER;
+import static org.jboss.as.patching.generator.ZipArchive.LOCAL_HEADER_LENGTH;
+import static org.jboss.as.patching.generator.ZipArchive.MAX_ENTRIES;
+import static org.jboss.as.patching.generator.ZipArchive.MAX_VALUE;
+import static org.jboss.as.patching.generator.ZipArchive.UTF_8;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.jboss.as.patching.IoUtils;
+
+/**
+ * Writes a zip archive, allowing entries of a {@link ZipArchive} to be copied without inflating and deflating their
+ * content again. The parent directories of an entry are added automatically, the same way {@code ZipUtils.zip} does.
+ */
+class ZipArchiveWriter implements Closeable {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    private final FileChannel channel;
+    private final List<ZipArchive.Entry> entries = new ArrayList<ZipArchive.Entry>();
+    private final Set<String> names = new HashSet<String>();
+    private final byte[] buffer = new byte[8192];
+    private boolean finished;
+
+    ZipArchiveWriter(final File target) throws IOException {
+        this(FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    ZipArchiveWriter(final FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Create a writer appending to an existing archive. The existing entries are kept where they are, new entries are
+     * written from the given position on, usually the offset of the existing central directory.
+     *
+     * @param channel  the channel of the existing archive
+     * @param position the position of the first new entry
+     * @param existing the existing entries to keep
+     * @throws IOException
+     */
+    ZipArchiveWriter(final FileChannel channel, final long position, final Collection<ZipArchive.Entry> existing) throws IOException {
+        this.channel = channel;
+        for (final ZipArchive.Entry entry : existing) {
+            names.add(entry.getName());
+            entries.add(entry);
+        }
+        channel.position(position);
+    }
+
+    boolean contains(final String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Copy the raw content of an entry.
+     *
+     * @param source the source archive
+     * @param entry  the entry
+     * @param name   the name of the copied entry
+     * @throws IOException
+     */
+    void copy(final ZipArchive source, final ZipArchive.Entry entry, final String name) throws IOException {
+        if (!register(name)) {
+            return;
+        }
+        final long offset = channel.position();
+        final int flags = (entry.getFlags() & ~FLAG_DATA_DESCRIPTOR) | FLAG_UTF8;
+        final ZipArchive.Entry target = new ZipArchive.Entry(name, entry.getVersionMadeBy(), entry.getVersionNeeded(),
+                flags, entry.getMethod(), entry.getTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize(),
+                entry.getExternalAttributes(), offset);
+        writeLocalHeader(target);
+        source.transferTo(entry, channel);
+        entries.add(target);
+    }
+
+    /**
+     * Add a directory entry.
+     *
+     * @param name the name, a trailing {@code /} is added if missing
+     * @throws IOException
+     */
+    void addDirectory(final String name) throws IOException {
+        final String directory = name.endsWith("/") ? name : name + "/";
+        if (register(directory)) {
+            final ZipArchive.Entry entry = new ZipArchive.Entry(directory, VERSION_STORED, VERSION_STORED, FLAG_UTF8,
+                    STORED, dosTime(System.currentTimeMillis()), 0, 0, 0, 0, channel.position());
+            writeLocalHeader(entry);
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Recursively add a file or directory.
+     *
+     * @param name the name of the entry
+     * @param file the file or directory
+     * @throws IOException
+     */
+    void addTree(final String name, final File file) throws IOException {
+        if (file.isDirectory()) {
+            addDirectory(name);
+            final String[] children = file.list();
+            if (children != null) {
+                Arrays.sort(children);
+                for (final String child : children) {
+                    addTree(name + "/" + child, new File(file, child));
+                }
+            }
+        } else {
+            addFile(name, file);
+        }
+    }
+
+    /**
+     * Add a file, deflating its content while it is written.
+     *
+     * @param name the name of the entry
+     * @param file the file
+     * @throws IOException
+     */
+    void addFile(final String name, final File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            addDeflated(name, is, file.lastModified());
+        } finally {
+            IoUtils.safeClose(is);
+        }
+    }
+
+    /**
+     * Add a file without compressing it, e.g. an archive. The content is read twice, once to calculate the checksum
+     * and then transferred as is.
+     *
+     * @param name the name of the entry
+     * @param file the file
+     * @throws IOException
+     */
+    void addStored(final String name, final File file) throws IOException {
+        if (!register(name)) {
+            return;
+        }
+        final FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final CRC32 crc = new CRC32();
+            final ByteBuffer content = ByteBuffer.wrap(buffer);
+            long position = 0;
+            int read;
+            while ((read = source.read(content, position)) != -1) {
+                crc.update(buffer, 0, read);
+                position += read;
+                content.clear();
+            }
+            final long size = checkSize(position);
+            final ZipArchive.Entry entry = new ZipArchive.Entry(name, VERSION_STORED, VERSION_STORED, FLAG_UTF8, STORED,
+                    dosTime(file.lastModified()), crc.getValue(), size, size, 0, channel.position());
+            writeLocalHeader(entry);
+            ZipArchive.transfer(source, 0, size, channel);
+            entries.add(entry);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param name the name of the entry
+     * @param data the content
+     * @throws IOException
+     */
+    void addEntry(final String name, final byte[] data) throws IOException {
+        if (!register(name)) {
+            return;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteBuffer compressed = ByteBuffer.allocate(data.length + (data.length >> 3) + 64);
+            while (!deflater.finished()) {
+                if (!compressed.hasRemaining()) {
+                    throw new IOException("failed to deflate " + name);
+                }
+                final int length = deflater.deflate(compressed.array(), compressed.position(), compressed.remaining());
+                compressed.position(compressed.position() + length);
+            }
+            compressed.flip();
+            final ZipArchive.Entry entry = new ZipArchive.Entry(name, VERSION_DEFLATED, VERSION_DEFLATED, FLAG_UTF8,
+                    DEFLATED, dosTime(System.currentTimeMillis()), crc.getValue(), compressed.remaining(), data.length, 0,
+                    channel.position());
+            writeLocalHeader(entry);
+            write(compressed);
+            entries.add(entry);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void addDeflated(final String name, final InputStream is, final long lastModified) throws IOException {
+        if (!register(name)) {
+            return;
+        }
+        final long offset = channel.position();
+        final int flags = FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+        final int time = dosTime(lastModified);
+        // The sizes are written to the data descriptor following the content
+        writeLocalHeader(new ZipArchive.Entry(name, VERSION_DEFLATED, VERSION_DEFLATED, flags, DEFLATED, time, 0, 0, 0, 0, offset));
+        final CRC32 crc = new CRC32();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            final OutputStream os = new DeflaterOutputStream(Channels.newOutputStream(channel), deflater, buffer.length);
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                os.write(buffer, 0, read);
+            }
+            ((DeflaterOutputStream) os).finish();
+            final ZipArchive.Entry entry = new ZipArchive.Entry(name, VERSION_DEFLATED, VERSION_DEFLATED, flags, DEFLATED,
+                    time, crc.getValue(), deflater.getBytesWritten(), deflater.getBytesRead(), 0, offset);
+            final ByteBuffer descriptor = allocate(16);
+            descriptor.putInt(DATA_DESCRIPTOR);
+            descriptor.putInt((int) entry.getCrc());
+            descriptor.putInt((int) checkSize(entry.getCompressedSize()));
+            descriptor.putInt((int) checkSize(entry.getSize()));
+            descriptor.flip();
+            write(descriptor);
+            entries.add(entry);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write the central directory.
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (entries.size() >= MAX_ENTRIES) {
+            throw new IOException("too many entries for a zip archive without zip64 extensions: " + entries.size());
+        }
+        final long centralDirectoryOffset = checkSize(channel.position());
+        for (final ZipArchive.Entry entry : entries) {
+            final byte[] name = entry.getName().getBytes(UTF_8);
+            final ByteBuffer header = allocate(CENTRAL_HEADER_LENGTH + name.length);
+            header.putInt(CENTRAL_HEADER);
+            header.putShort((short) entry.getVersionMadeBy());
+            header.putShort((short) entry.getVersionNeeded());
+            header.putShort((short) entry.getFlags());
+            header.putShort((short) entry.getMethod());
+            header.putInt(entry.getTime());
+            header.putInt((int) entry.getCrc());
+            header.putInt((int) entry.getCompressedSize());
+            header.putInt((int) entry.getSize());
+            header.putShort((short) name.length);
+            header.putShort((short) 0); // extra
+            header.putShort((short) 0); // comment
+            header.putShort((short) 0); // disk
+            header.putShort((short) 0); // internal attributes
+            header.putInt(entry.getExternalAttributes());
+            header.putInt((int) entry.getLocalHeaderOffset());
+            header.put(name);
+            header.flip();
+            write(header);
+        }
+        final long centralDirectorySize = checkSize(channel.position() - centralDirectoryOffset);
+        final ByteBuffer end = allocate(END_OF_CENTRAL_DIRECTORY_LENGTH);
+        end.putInt(END_OF_CENTRAL_DIRECTORY);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) entries.size());
+        end.putShort((short) entries.size());
+        end.putInt((int) centralDirectorySize);
+        end.putInt((int) centralDirectoryOffset);
+        end.putShort((short) 0);
+        end.flip();
+        write(end);
+        channel.truncate(channel.position());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private boolean register(final String name) throws IOException {
+        if (names.contains(name)) {
+            if (name.endsWith("/")) {
+                return false;
+            }
+            throw new IOException("duplicate entry " + name);
+        }
+        // Add the parent directories first
+        int i = name.indexOf('/');
+        while (i != -1 && i < name.length() - 1) {
+            addDirectory(name.substring(0, i + 1));
+            i = name.indexOf('/', i + 1);
+        }
+        names.add(name);
+        return true;
+    }
+
+    private void writeLocalHeader(final ZipArchive.Entry entry) throws IOException {
+        checkSize(entry.getLocalHeaderOffset());
+        final boolean descriptor = (entry.getFlags() & FLAG_DATA_DESCRIPTOR) != 0;
+        final byte[] name = entry.getName().getBytes(UTF_8);
+        final ByteBuffer header = allocate(LOCAL_HEADER_LENGTH + name.length);
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) entry.getVersionNeeded());
+        header.putShort((short) entry.getFlags());
+        header.putShort((short) entry.getMethod());
+        header.putInt(entry.getTime());
+        header.putInt(descriptor ? 0 : (int) entry.getCrc());
+        header.putInt(descriptor ? 0 : (int) entry.getCompressedSize());
+        header.putInt(descriptor ? 0 : (int) entry.getSize());
+        header.putShort((short) name.length);
+        header.putShort((short) 0);
+        header.put(name);
+        header.flip();
+        write(header);
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer allocate(final int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long checkSize(final long value) throws IOException {
+        if (value >= MAX_VALUE) {
+            throw new IOException("archive too large for a zip archive without zip64 extensions");
+        }
+        return value;
+    }
+
+    /**
+     * Convert a java time to the MS-DOS date and time format used by zip archives.
+     */
+    static int dosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.as.patching.IoUtils;
+import org.junit.Test;
+
+/**
+ * Tests that {@link DistributionContentItem#compareTo(DistributionContentItem)} orders the items by their path, no
+ * matter whether they belong to the same tree and whether the trees are frozen.
+ */
+public class DistributionContentItemUnitTestCase {
+
+    private static final String[] PATHS = {"docs/z.txt", "bin/client/c.jar", "bin/a.sh", "bin.txt", "Docs", "docs/a/b",
+            "bin/client.txt", "modules/org/foo/main/module.xml"};
+    private static final String[] OTHER_PATHS = {"bin/b.sh", "bin/client/c.jar", "bin0", "docs/a", "a", "modules/org/foo"};
+
+    /**
+     * Compares the paths segment by segment, a parent is ordered before its children.
+     */
+    private static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(final String path, final String other) {
+            final String[] segments = path.isEmpty() ? new String[0] : path.split("/");
+            final String[] otherSegments = other.isEmpty() ? new String[0] : other.split("/");
+            final int limit = Math.min(segments.length, otherSegments.length);
+            for (int i = 0; i < limit; i++) {
+                final int result = segments[i].compareTo(otherSegments[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return segments.length - otherSegments.length;
+        }
+    };
+
+    @Test
+    public void testFrozenTree() {
+        final Map<String, DistributionContentItem> tree = createTree(PATHS);
+        DistributionContentItem.freeze(tree.get(""));
+
+        // The children are sorted, so a pre-order walk lists the items in order
+        final List<DistributionContentItem> walked = new ArrayList<DistributionContentItem>();
+        walk(tree.get(""), walked);
+        final List<String> paths = new ArrayList<String>(tree.keySet());
+        Collections.sort(paths, PATH_ORDER);
+        assertEquals(paths, getPaths(walked));
+
+        assertOrder(tree, tree);
+    }
+
+    @Test
+    public void testDifferentTrees() {
+        final Map<String, DistributionContentItem> tree = createTree(PATHS);
+        final Map<String, DistributionContentItem> other = createTree(OTHER_PATHS);
+        DistributionContentItem.freeze(tree.get(""));
+        DistributionContentItem.freeze(other.get(""));
+
+        assertOrder(tree, other);
+        assertOrder(other, tree);
+    }
+
+    @Test
+    public void testFrozenAndUnfrozenTrees() {
+        final Map<String, DistributionContentItem> tree = createTree(PATHS);
+        final Map<String, DistributionContentItem> same = createTree(PATHS);
+        final Map<String, DistributionContentItem> other = createTree(OTHER_PATHS);
+        DistributionContentItem.freeze(tree.get(""));
+
+        assertOrder(tree, same);
+        assertOrder(same, tree);
+        assertOrder(tree, other);
+        assertOrder(other, tree);
+        assertOrder(same, other);
+    }
+
+    @Test
+    public void testChildren() {
+        final DistributionContentItem root = new DistributionItemImpl(null, null, IoUtils.NO_CONTENT, IoUtils.NO_CONTENT, false);
+        root.getChildren().add(new DistributionItemImpl(root, "b", IoUtils.NO_CONTENT, IoUtils.NO_CONTENT, true));
+        root.getChildren().add(new DistributionItemImpl(root, "a", IoUtils.NO_CONTENT, IoUtils.NO_CONTENT, true));
+        root.getChildren().add(new DistributionItemImpl(root, "b", IoUtils.NO_CONTENT, IoUtils.NO_CONTENT, true));
+        try {
+            root.getChildren().size();
+            fail("read the children before the tree was frozen");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        DistributionContentItem.freeze(root);
+
+        // Sorted, without the duplicate
+        final List<DistributionContentItem> children = new ArrayList<DistributionContentItem>(root.getChildren());
+        assertEquals(Arrays.asList("a", "b"), getPaths(children));
+        try {
+            root.getChildren().add(new DistributionItemImpl(root, "c", IoUtils.NO_CONTENT, IoUtils.NO_CONTENT, true));
+            fail("added a child after the tree was frozen");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Check that comparing the items of two trees matches comparing their paths segment by segment.
+     */
+    private static void assertOrder(final Map<String, DistributionContentItem> tree, final Map<String, DistributionContentItem> other) {
+        for (final Map.Entry<String, DistributionContentItem> item : tree.entrySet()) {
+            for (final Map.Entry<String, DistributionContentItem> otherItem : other.entrySet()) {
+                final String message = item.getKey() + " <> " + otherItem.getKey();
+                final int expected = Integer.signum(PATH_ORDER.compare(item.getKey(), otherItem.getKey()));
+                assertEquals(message, expected, Integer.signum(item.getValue().compareTo(otherItem.getValue())));
+                assertEquals(message, expected == 0, item.getValue().equals(otherItem.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Create a tree containing the paths and their parent directories, the children are added in reverse order.
+     *
+     * @return the items by path, the root has the empty path
+     */
+    private static Map<String, DistributionContentItem> createTree(final String... paths) {
+        final Map<String, DistributionContentItem> items = new LinkedHashMap<String, DistributionContentItem>();
+        items.put("", new DistributionItemImpl(null, null, IoUtils.NO_CONTENT, IoUtils.NO_CONTENT, false));
+        final List<String> reversed = new ArrayList<String>(Arrays.asList(paths));
+        Collections.sort(reversed, Collections.reverseOrder(PATH_ORDER));
+        for (final String path : reversed) {
+            getOrCreate(items, path, true);
+        }
+        return items;
+    }
+
+    private static DistributionContentItem getOrCreate(final Map<String, DistributionContentItem> items, final String path, final boolean leaf) {
+        DistributionContentItem item = items.get(path);
+        if (item == null) {
+            final int index = path.lastIndexOf('/');
+            final DistributionContentItem parent = getOrCreate(items, index == -1 ? "" : path.substring(0, index), false);
+            item = new DistributionItemImpl(parent, path.substring(index + 1), IoUtils.NO_CONTENT, IoUtils.NO_CONTENT, leaf);
+            parent.getChildren().add(item);
+            items.put(path, item);
+        }
+        return item;
+    }
+
+    private static void walk(final DistributionContentItem item, final List<DistributionContentItem> items) {
+        items.add(item);
+        for (final DistributionContentItem child : item.getChildren()) {
+            walk(child, items);
+        }
+    }
+
+    private static List<String> getPaths(final List<DistributionContentItem> items) {
+        final List<String> paths = new ArrayList<String>();
+        for (final DistributionContentItem item : items) {
+            paths.add(item.getPath());
+        }
+        return paths;
+    }
+
+}
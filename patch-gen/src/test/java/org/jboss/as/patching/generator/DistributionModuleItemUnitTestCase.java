@@ -0,0 +1,70 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.junit.Assert.assertEquals;
+
+import org.jboss.as.patching.IoUtils;
+import org.junit.Test;
+
+/**
+ * Tests that {@link DistributionModuleItem#compareTo(DistributionModuleItem)} orders the items like their full
+ * module names, {@code name:slot}.
+ */
+public class DistributionModuleItemUnitTestCase {
+
+    @Test
+    public void testPrefixNames() {
+        // '.' and '-' sort before the ':' separator, letters after it
+        assertOrder("org.foo", "main", "org.foo.bar", "main");
+        assertOrder("org.foo", "main", "org.foo-bar", "main");
+        assertOrder("org.foo", "main", "org.foobar", "main");
+        assertOrder("org", "main", "org.foo", "main");
+        assertOrder("org.fo", "z", "org.foo", "a");
+    }
+
+    @Test
+    public void testSlots() {
+        assertOrder("org.foo", "main", "org.foo", "main");
+        assertOrder("org.foo", "main", "org.foo", "main2");
+        assertOrder("org.foo", "main", "org.foo", "1.0");
+        assertOrder("org.foo", "", "org.foo", "main");
+        assertOrder("org.foo", "", "org.foo.bar", "");
+        // The same full name from different names and slots
+        assertOrder("org.foo:a", "b", "org.foo", "a:b");
+    }
+
+    /**
+     * Check both directions of the comparison against the order of the full module names.
+     */
+    private static void assertOrder(final String name, final String slot, final String otherName, final String otherSlot) {
+        final DistributionModuleItem item = new DistributionModuleItem(name, slot, IoUtils.NO_CONTENT, IoUtils.NO_CONTENT);
+        // Not the same string instances, these are only shared by the items
+        final DistributionModuleItem other = new DistributionModuleItem(new String(otherName), new String(otherSlot), IoUtils.NO_CONTENT, IoUtils.NO_CONTENT);
+        final String message = item.getFullModuleName() + " <> " + other.getFullModuleName();
+        final int expected = Integer.signum(item.getFullModuleName().compareTo(other.getFullModuleName()));
+        assertEquals(message, expected, Integer.signum(item.compareTo(other)));
+        assertEquals(message, -expected, Integer.signum(other.compareTo(item)));
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenTestUtils.createFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.jboss.as.patching.HashUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that {@link FileHashing} computes the same hashes as {@link HashUtils#hashFile(File)}.
+ */
+public class FileHashingUnitTestCase {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testSmallFile() throws Exception {
+        final File file = createFile(new File(temp.getRoot(), "small.txt"), 12345);
+        assertArrayEquals(HashUtils.hashFile(file), FileHashing.hashFile(file));
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        final File file = createFile(new File(temp.getRoot(), "empty.txt"), 0);
+        assertArrayEquals(HashUtils.hashFile(file), FileHashing.hashFile(file));
+    }
+
+    @Test
+    public void testLargeFile() throws Exception {
+        // Spanning several reads of the buffer
+        final File file = createFile(new File(temp.getRoot(), "large.bin"), 3 * 1024 * 1024 + 4321);
+        assertArrayEquals(HashUtils.hashFile(file), FileHashing.hashFile(file));
+    }
+
+    @Test
+    public void testNestedDirectory() throws Exception {
+        final File dir = new File(temp.getRoot(), "dir");
+        createFile(new File(dir, "b.txt"), 100);
+        createFile(new File(dir, "a/c.txt"), 2000);
+        createFile(new File(dir, "a/b/empty.txt"), 0);
+        createFile(new File(dir, "a/b/d.bin"), 70000);
+        createFile(new File(dir, "a0.txt"), 10);
+        assertTrue(new File(dir, "a/e").mkdirs());
+        assertArrayEquals(HashUtils.hashFile(dir), FileHashing.hashFile(dir));
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.as.patching.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the ordering of the jar entry hashes, the concurrent jar comparison and the allocations of the jar comparison.
+ */
+public class JarDiffUtilsUnitTestCase {
+
+    private static final int ENTRIES = 2000;
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testEntryTableOrder() throws Exception {
+        final String[] names = {"b", "a", "c", "a", "ab", "b", "0"};
+        final JarDiffUtils.EntryTable table = new JarDiffUtils.EntryTable();
+        // A sorted map keeping the first hash of a name, like the sorted set used before
+        final Map<String, byte[]> expected = new TreeMap<String, byte[]>();
+        for (int i = 0; i < names.length; i++) {
+            final byte[] hash = new byte[] {(byte) i, (byte) (i * 7)};
+            table.add(names[i], hash, 0, hash.length);
+            if (!expected.containsKey(names[i])) {
+                expected.put(names[i], hash);
+            }
+        }
+        final MessageDigest expectedDigest = MessageDigest.getInstance("SHA1");
+        for (final byte[] hash : expected.values()) {
+            expectedDigest.update(hash);
+        }
+        final MessageDigest digest = MessageDigest.getInstance("SHA1");
+        table.update(digest);
+        assertArrayEquals(expectedDigest.digest(), digest.digest());
+    }
+
+    @Test
+    public void testParallelComparison() throws Exception {
+        assertParallelComparison("manifest first", JarFile.MANIFEST_NAME, "org/A.class", "org/B.class", "b.txt");
+        assertParallelComparison("directory and manifest", "META-INF/", JarFile.MANIFEST_NAME, "org/", "org/A.class", "b.txt");
+        assertParallelComparison("manifest not first", "org/A.class", JarFile.MANIFEST_NAME, "b.txt");
+        assertParallelComparison("directory not followed by the manifest", "META-INF/", "org/A.class", JarFile.MANIFEST_NAME);
+        assertParallelComparison("no manifest", "org/", "org/A.class", "org/B.class", "META-INF/services/org.A");
+        assertParallelComparison("signed and ignored entries", "META-INF/", JarFile.MANIFEST_NAME, "META-INF/TEST.SF",
+                "META-INF/TEST.DSA", "META-INF/INDEX.LIST", "META-INF/maven/org/a/pom.properties", "META-INF/maven/org/a/pom.xml",
+                "org/A.class", "org/A_$logger.class", "org/A_$bundle.class", "org/A_$logger_de.class");
+    }
+
+    /**
+     * Compare a jar with the given entries sequentially and concurrently, with every entry hashed by its own task.
+     */
+    private void assertParallelComparison(final String message, final String... names) throws Exception {
+        final File jar = temp.newFile();
+        final ZipOutputStream os = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (final String name : names) {
+                os.putNextEntry(new ZipEntry(name));
+                if (name.equals(JarFile.MANIFEST_NAME)) {
+                    os.write(("Manifest-Version: 1.0\r\nImplementation-Title: test\r\nBuilt-By: someone\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                } else if (!name.endsWith("/")) {
+                    for (int i = 0; i < 100; i++) {
+                        os.write(name.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                os.closeEntry();
+            }
+        } finally {
+            os.close();
+        }
+        for (final boolean strong : new boolean[] {false, true}) {
+            final JarDiffUtils.EntryTable sequential = new JarDiffUtils.EntryTable();
+            JarDiffUtils.sequentialJarComparison(jar, sequential, strong);
+            final JarDiffUtils.EntryTable parallel = new JarDiffUtils.EntryTable();
+            JarDiffUtils.parallelJarComparison(jar, parallel, strong, 1);
+            assertEquals(message, sequential.size(), parallel.size());
+            assertArrayEquals(message, sequential.toByteArray(), parallel.toByteArray());
+        }
+    }
+
+    @Test
+    public void testAllocationsPerEntry() throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final Method allocatedBytes;
+        try {
+            final Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            Assume.assumeTrue("thread allocation accounting not available", type.isInstance(threads));
+            allocatedBytes = type.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ClassNotFoundException e) {
+            Assume.assumeTrue("thread allocation accounting not available", false);
+            return;
+        }
+
+        final File jar = temp.newFile();
+        final JarOutputStream os = new JarOutputStream(new FileOutputStream(jar), new Manifest());
+        try {
+            for (int i = 0; i < ENTRIES; i++) {
+                os.putNextEntry(new JarEntry("org/jboss/as/test/Class" + i + ".class"));
+                os.write(new byte[100 + i % 50]);
+                os.closeEntry();
+            }
+        } finally {
+            os.close();
+        }
+
+        // Warm up
+        for (int i = 0; i < 10; i++) {
+            JarDiffUtils.internalJarComparison(jar);
+        }
+        final long thread = Thread.currentThread().getId();
+        final long before = (Long) allocatedBytes.invoke(threads, thread);
+        JarDiffUtils.internalJarComparison(jar);
+        final long after = (Long) allocatedBytes.invoke(threads, thread);
+
+        // What is left is allocated by the JarInputStream for each entry and its name
+        final long perEntry = (after - before) / ENTRIES;
+        assertTrue("allocated " + perEntry + " bytes per entry", perEntry < 512);
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.as.patching.IoUtils;
+import org.jboss.as.patching.metadata.BundledPatch;
+import org.jboss.as.patching.metadata.PatchBuilder;
+import org.jboss.as.patching.metadata.PatchBundleXml;
+import org.jboss.as.patching.metadata.PatchXml;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests assembling patch bundles and appending patches to them.
+ */
+public class PatchBundleGeneratorUnitTestCase {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+    private int patches;
+
+    @Test
+    public void testAppend() throws Exception {
+        final File p1 = createPatch("p1");
+        final File p2 = createPatch("p2");
+        final File p3 = createPatch("p3");
+        final File bundle = new File(temp.getRoot(), "bundle.zip");
+        new PatchBundleGenerator().assemble(Collections.singletonList(p1), null, bundle);
+
+        new PatchBundleGenerator().append(Arrays.asList(p2, p3), bundle);
+
+        assertBundle(bundle, p1, p2, p3);
+    }
+
+    @Test
+    public void testAppendDuplicatePatch() throws Exception {
+        final File p1 = createPatch("p1");
+        final File p2 = createPatch("p2");
+        final File bundle = new File(temp.getRoot(), "bundle.zip");
+        new PatchBundleGenerator().assemble(Collections.singletonList(p1), null, bundle);
+        final byte[] original = Files.readAllBytes(bundle.toPath());
+
+        try {
+            new PatchBundleGenerator().append(Arrays.asList(p2, createPatch("p1")), bundle);
+            fail("appended a patch which is already part of the bundle");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+        assertBundle(bundle, p1);
+    }
+
+    @Test
+    public void testAppendUnreadablePatch() throws Exception {
+        final File p1 = createPatch("p1");
+        final File bundle = new File(temp.getRoot(), "bundle.zip");
+        new PatchBundleGenerator().assemble(Collections.singletonList(p1), null, bundle);
+        final byte[] original = Files.readAllBytes(bundle.toPath());
+        final File broken = new File(temp.getRoot(), "broken.zip");
+        Files.write(broken.toPath(), "not a zip".getBytes("UTF-8"));
+
+        try {
+            new PatchBundleGenerator().append(Arrays.asList(createPatch("p2"), broken), bundle);
+            fail("appended an unreadable patch");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+        assertBundle(bundle, p1);
+    }
+
+    @Test
+    public void testAppendRestoresBundle() throws Exception {
+        // Appending fails after the patch was written over the central directory
+        final File p1 = createPatch("p1");
+        final File bundle = createFullBundle(p1);
+        final byte[] original = Files.readAllBytes(bundle.toPath());
+
+        try {
+            new PatchBundleGenerator().append(Collections.singletonList(createPatch("p2")), bundle);
+            fail("appended more entries than supported");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+        assertBundle(bundle, p1);
+    }
+
+    @Test
+    public void testAssemble() throws Exception {
+        final File p1 = createPatch("p1");
+        final File p2 = createPatch("p2");
+        final File p3 = createPatch("p3");
+        final File bundle = new File(temp.getRoot(), "bundle.zip");
+        new PatchBundleGenerator().assemble(Collections.singletonList(p1), null, bundle);
+
+        new PatchBundleGenerator().assemble(Arrays.asList(p2, p3), bundle, bundle);
+
+        assertBundle(bundle, p1, p2, p3);
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void testAssembleTarget() throws Exception {
+        final File p1 = createPatch("p1");
+        final File p2 = createPatch("p2");
+        final File bundle = new File(temp.getRoot(), "bundle.zip");
+        new PatchBundleGenerator().assemble(Collections.singletonList(p1), null, bundle);
+        final byte[] original = Files.readAllBytes(bundle.toPath());
+        final File target = new File(temp.getRoot(), "target.zip");
+
+        new PatchBundleGenerator().assemble(Collections.singletonList(p2), bundle, target);
+
+        assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+        assertBundle(target, p1, p2);
+    }
+
+    @Test
+    public void testAssembleUnreadablePatch() throws Exception {
+        final File p1 = createPatch("p1");
+        final File bundle = new File(temp.getRoot(), "bundle.zip");
+        new PatchBundleGenerator().assemble(Collections.singletonList(p1), null, bundle);
+        final byte[] original = Files.readAllBytes(bundle.toPath());
+        final File broken = new File(temp.getRoot(), "broken.zip");
+        Files.write(broken.toPath(), "not a zip".getBytes("UTF-8"));
+
+        try {
+            new PatchBundleGenerator().assemble(Arrays.asList(createPatch("p2"), broken), bundle, bundle);
+            fail("assembled an unreadable patch");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+        assertBundle(bundle, p1);
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void testAssembleKeepsBundle() throws Exception {
+        // Assembling fails while writing the new bundle, after the existing entries were copied
+        final File p1 = createPatch("p1");
+        final File bundle = createFullBundle(p1);
+        final byte[] original = Files.readAllBytes(bundle.toPath());
+
+        try {
+            new PatchBundleGenerator().assemble(Collections.singletonList(createPatch("p2")), bundle, bundle);
+            fail("assembled more entries than supported");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+        assertBundle(bundle, p1);
+        assertNoTempFiles();
+    }
+
+    /**
+     * Create a bundle containing patch {@code p1} and so many other entries that another patch and the metadata no
+     * longer fit without zip64 extensions.
+     */
+    private File createFullBundle(final File p1) throws Exception {
+        final List<BundledPatch.BundledPatchEntry> entries = new ArrayList<BundledPatch.BundledPatchEntry>();
+        entries.add(new BundledPatch.BundledPatchEntry("p1", "p1.zip"));
+        final ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        PatchBundleXml.marshal(metadata, new BundledPatch() {
+            @Override
+            public List<BundledPatchEntry> getPatches() {
+                return entries;
+            }
+        });
+        final File bundle = new File(temp.getRoot(), "bundle.zip");
+        final ZipArchiveWriter writer = new ZipArchiveWriter(bundle);
+        try {
+            writer.addEntry(PatchBundleXml.MULTI_PATCH_XML, metadata.toByteArray());
+            writer.addStored("p1.zip", p1);
+            for (int i = 0; i < ZipArchive.MAX_ENTRIES - 3; i++) {
+                writer.addDirectory("d" + i);
+            }
+        } finally {
+            writer.close();
+        }
+        return bundle;
+    }
+
+    private void assertNoTempFiles() {
+        for (final String name : temp.getRoot().list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+    }
+
+    /**
+     * Check that a bundle lists the patches, in order, and contains them unchanged.
+     */
+    private static void assertBundle(final File bundle, final File... patches) throws Exception {
+        final ZipFile zipFile = new ZipFile(bundle);
+        try {
+            final ZipEntry entry = zipFile.getEntry(PatchBundleXml.MULTI_PATCH_XML);
+            assertNotNull(entry);
+            final List<BundledPatch.BundledPatchEntry> entries;
+            final InputStream is = zipFile.getInputStream(entry);
+            try {
+                entries = PatchBundleXml.parse(is).getPatches();
+            } finally {
+                is.close();
+            }
+            assertEquals(patches.length, entries.size());
+            for (int i = 0; i < patches.length; i++) {
+                final String patchId = patches[i].getName().substring(0, patches[i].getName().length() - ".zip".length());
+                assertEquals(patchId, entries.get(i).getPatchId());
+                assertEquals(patchId + ".zip", entries.get(i).getPatchPath());
+                final ZipEntry patchEntry = zipFile.getEntry(patchId + ".zip");
+                assertNotNull(patchId, patchEntry);
+                final InputStream patch = zipFile.getInputStream(patchEntry);
+                try {
+                    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    IoUtils.copyStream(patch, os);
+                    assertArrayEquals(patchId, Files.readAllBytes(patches[i].toPath()), os.toByteArray());
+                } finally {
+                    patch.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Create a one-off patch containing only its metadata.
+     */
+    private File createPatch(final String patchId) throws Exception {
+        final PatchBuilder builder = PatchBuilder.create();
+        builder.setPatchId(patchId);
+        builder.setDescription(patchId);
+        builder.oneOffPatchIdentity("WildFly", "1.0");
+        final ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        PatchXml.marshal(metadata, builder.build());
+        // A separate directory for each patch, the same id may be used twice
+        final File dir = new File(temp.getRoot(), "patch" + patches++);
+        assertTrue(dir.mkdirs());
+        final File patch = new File(dir, patchId + ".zip");
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(patch));
+        try {
+            zos.putNextEntry(new ZipEntry(PatchXml.PATCH_XML));
+            zos.write(metadata.toByteArray());
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+        return patch;
+    }
+
+}
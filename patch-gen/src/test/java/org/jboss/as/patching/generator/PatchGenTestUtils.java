@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Creates the content used by the tests.
+ */
+final class PatchGenTestUtils {
+
+    private PatchGenTestUtils() {
+    }
+
+    /**
+     * Create compressible content, the same for the same size.
+     *
+     * @param size the size of the content
+     * @return the content
+     */
+    static byte[] createContent(final int size) {
+        final Random random = new Random(size);
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    static File createFile(final File file, final int size) throws IOException {
+        return createFile(file, createContent(size));
+    }
+
+    static File createFile(final File file, final String content) throws IOException {
+        return createFile(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a file and its parent directories.
+     *
+     * @param file    the file
+     * @param content the content of the file
+     * @return the file
+     * @throws IOException
+     */
+    static File createFile(final File file, final byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+}
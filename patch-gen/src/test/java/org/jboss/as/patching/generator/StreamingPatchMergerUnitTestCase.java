@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenTestUtils.createFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jboss.as.patching.HashUtils;
+import org.jboss.as.patching.IoUtils;
+import org.jboss.as.patching.ZipUtils;
+import org.jboss.as.patching.metadata.Patch;
+import org.jboss.as.patching.metadata.PatchBuilder;
+import org.jboss.as.patching.metadata.PatchXml;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that {@link StreamingPatchMerger} creates the same CP as {@link org.jboss.as.patching.metadata.PatchMerger}.
+ */
+public class StreamingPatchMergerUnitTestCase {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testMerge() throws Exception {
+        // The previous CP, adding a misc file and a module
+        final File cp1 = new File(temp.getRoot(), "cp1");
+        final File a1 = createFile(new File(cp1, "cp1/misc/bin/a.txt"), "a1");
+        final File foo = new File(cp1, "base-cp1/modules/org/foo/main");
+        createFile(new File(foo, "module.xml"), "<module name=\"org.foo\"/>");
+        createFile(new File(foo, "foo.jar"), "foo");
+        final PatchBuilder builder1 = PatchBuilder.create();
+        builder1.setPatchId("cp1");
+        builder1.setDescription("cp1");
+        builder1.upgradeIdentity("WildFly", "1.0", "1.1");
+        builder1.addFile("a.txt", Arrays.asList("bin"), HashUtils.hashFile(a1), false, null);
+        builder1.upgradeElement("base-cp1", "base", false)
+                .addModule("org.foo", "main", HashUtils.hashFile(foo));
+        writePatch(cp1, builder1.build());
+        final File previousCp = new File(temp.getRoot(), "cp1.zip");
+        ZipUtils.zip(cp1, previousCp);
+
+        // The new patch, modifying the misc file and adding another module
+        final File cp2 = new File(temp.getRoot(), "cp2");
+        final File a2 = createFile(new File(cp2, "cp2/misc/bin/a.txt"), "a2");
+        final File bar = new File(cp2, "base-cp2/modules/org/bar/main");
+        createFile(new File(bar, "module.xml"), "<module name=\"org.bar\"/>");
+        createFile(new File(cp2, "README.txt"), "readme");
+        final PatchBuilder builder2 = PatchBuilder.create();
+        builder2.setPatchId("cp2");
+        builder2.setDescription("cp2");
+        builder2.upgradeIdentity("WildFly", "1.1", "1.2");
+        builder2.modifyFile("a.txt", Arrays.asList("bin"), HashUtils.hashFile(a1), HashUtils.hashFile(a2), false, null);
+        builder2.upgradeElement("base-cp2", "base", false)
+                .addModule("org.bar", "main", HashUtils.hashFile(bar));
+        writePatch(cp2, builder2.build());
+
+        final File streamed = new File(temp.getRoot(), "streamed.zip");
+        StreamingPatchMerger.merge(previousCp, cp2, streamed);
+        final File expected = new File(temp.getRoot(), "expected.zip");
+        org.jboss.as.patching.metadata.PatchMerger.merge(previousCp, cp2, expected);
+
+        final Map<String, byte[]> expectedContent = readFiles(expected);
+        final Map<String, byte[]> streamedContent = readFiles(streamed);
+        assertEquals(expectedContent.keySet(), streamedContent.keySet());
+        for (final Map.Entry<String, byte[]> entry : expectedContent.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), streamedContent.get(entry.getKey()));
+        }
+        // The unchanged module is copied from the previous CP, the misc file is taken from the new patch
+        assertArrayEquals("foo".getBytes("UTF-8"), streamedContent.get("base-cp2/modules/org/foo/main/foo.jar"));
+        assertArrayEquals("a2".getBytes("UTF-8"), streamedContent.get("cp2/misc/bin/a.txt"));
+        assertTrue(streamedContent.containsKey(PatchXml.PATCH_XML));
+    }
+
+    private static void writePatch(final File dir, final Patch patch) throws Exception {
+        final Writer writer = new FileWriter(new File(dir, PatchXml.PATCH_XML));
+        try {
+            PatchXml.marshal(writer, patch);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Read the content of the files in an archive, by name.
+     */
+    private static Map<String, byte[]> readFiles(final File archive) throws IOException {
+        final Map<String, byte[]> content = new TreeMap<String, byte[]>();
+        final ZipFile zipFile = new ZipFile(archive);
+        try {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final InputStream is = zipFile.getInputStream(entry);
+                try {
+                    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    IoUtils.copyStream(is, os);
+                    content.put(entry.getName(), os.toByteArray());
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+        return content;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2018, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.as.patching.generator;
+
+import static org.jboss.as.patching.generator.PatchGenTestUtils.createContent;
+import static org.jboss.as.patching.generator.PatchGenTestUtils.createFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the archives written by {@link ZipArchiveWriter} and read by {@link ZipArchive} round-trip through
+ * {@link ZipFile}.
+ */
+public class ZipArchiveUnitTestCase {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testWrite() throws Exception {
+        final byte[] metadata = createContent(1000);
+        final File deflated = createFile(new File(temp.getRoot(), "deflated.txt"), 70000);
+        final File stored = createFile(new File(temp.getRoot(), "stored.jar"), 12345);
+        final File empty = createFile(new File(temp.getRoot(), "empty.txt"), 0);
+
+        final File archive = new File(temp.getRoot(), "test.zip");
+        final ZipArchiveWriter writer = new ZipArchiveWriter(archive);
+        try {
+            writer.addEntry("patch.xml", metadata);
+            writer.addFile("misc/bin/deflated.txt", deflated);
+            writer.addStored("misc/bin/stored.jar", stored);
+            writer.addFile("misc/empty.txt", empty);
+            writer.addDirectory("misc/docs");
+        } finally {
+            writer.close();
+        }
+
+        final ZipFile zipFile = new ZipFile(archive);
+        try {
+            assertEquals(Arrays.asList("patch.xml", "misc/", "misc/bin/", "misc/bin/deflated.txt", "misc/bin/stored.jar",
+                    "misc/empty.txt", "misc/docs/"), getNames(zipFile));
+            assertContent(zipFile, "patch.xml", metadata);
+            assertContent(zipFile, "misc/bin/deflated.txt", Files.readAllBytes(deflated.toPath()));
+            assertContent(zipFile, "misc/bin/stored.jar", Files.readAllBytes(stored.toPath()));
+            assertContent(zipFile, "misc/empty.txt", new byte[0]);
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("misc/bin/stored.jar").getMethod());
+            assertTrue(zipFile.getEntry("misc/docs/").isDirectory());
+        } finally {
+            zipFile.close();
+        }
+
+        // The central directory read back matches the written entries
+        final ZipArchive zipArchive = ZipArchive.open(archive);
+        try {
+            assertEquals(7, zipArchive.getEntries().size());
+            final ZipArchive.Entry entry = zipArchive.getEntry("misc/bin/deflated.txt");
+            assertNotNull(entry);
+            assertEquals(deflated.length(), entry.getSize());
+            assertEquals(crc(Files.readAllBytes(deflated.toPath())), entry.getCrc());
+            assertTrue((entry.getFlags() & ZipArchive.FLAG_DATA_DESCRIPTOR) != 0);
+            assertEquals(Arrays.asList("misc/bin/", "misc/bin/deflated.txt", "misc/bin/stored.jar"), toNames(zipArchive.getEntries("misc/bin")));
+        } finally {
+            zipArchive.close();
+        }
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        // ZipOutputStream writes a data descriptor after every deflated entry
+        final byte[] first = createContent(50000);
+        final byte[] second = createContent(10);
+        final File source = new File(temp.getRoot(), "source.zip");
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source));
+        try {
+            zos.putNextEntry(new ZipEntry("cp1/misc/a.txt"));
+            zos.write(first);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("cp1/misc/b.txt"));
+            zos.write(second);
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+
+        final File archive = new File(temp.getRoot(), "copy.zip");
+        final ZipArchive previous = ZipArchive.open(source);
+        try {
+            final ZipArchive.Entry entry = previous.getEntry("cp1/misc/a.txt");
+            assertNotNull(entry);
+            assertTrue((entry.getFlags() & ZipArchive.FLAG_DATA_DESCRIPTOR) != 0);
+            final ZipArchiveWriter writer = new ZipArchiveWriter(archive);
+            try {
+                writer.copy(previous, entry, "cp2/misc/a.txt");
+                writer.copy(previous, previous.getEntry("cp1/misc/b.txt"), "cp2/misc/b.txt");
+                writer.addEntry("cp2/misc/c.txt", second);
+            } finally {
+                writer.close();
+            }
+        } finally {
+            previous.close();
+        }
+
+        final ZipFile zipFile = new ZipFile(archive);
+        try {
+            assertEquals(Arrays.asList("cp2/", "cp2/misc/", "cp2/misc/a.txt", "cp2/misc/b.txt", "cp2/misc/c.txt"), getNames(zipFile));
+            assertContent(zipFile, "cp2/misc/a.txt", first);
+            assertContent(zipFile, "cp2/misc/b.txt", second);
+            assertContent(zipFile, "cp2/misc/c.txt", second);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static void assertContent(final ZipFile zipFile, final String name, final byte[] expected) throws IOException {
+        final ZipEntry entry = zipFile.getEntry(name);
+        assertNotNull(name, entry);
+        assertEquals(name, expected.length, entry.getSize());
+        assertEquals(name, crc(expected), entry.getCrc());
+        final InputStream is = zipFile.getInputStream(entry);
+        try {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+            assertArrayEquals(name, expected, os.toByteArray());
+        } finally {
+            is.close();
+        }
+    }
+
+    private static List<String> getNames(final ZipFile zipFile) {
+        final List<String> names = new ArrayList<String>();
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            names.add(entries.nextElement().getName());
+        }
+        return names;
+    }
+
+    private static List<String> toNames(final List<ZipArchive.Entry> entries) {
+        final List<String> names = new ArrayList<String>();
+        for (final ZipArchive.Entry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    private static long crc(final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+}